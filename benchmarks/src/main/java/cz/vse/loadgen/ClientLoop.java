@@ -0,0 +1,103 @@
+package cz.vse.loadgen;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector thread serving the connections of many simulated players.
+ * Players are handed over by {@link #add(SimulatedPlayer)} and live on this thread from then on.
+ */
+final class ClientLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<SimulatedPlayer> added = new ConcurrentLinkedQueue<>();
+    private final LoadStats.Latencies latencies = new LoadStats.Latencies();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    ClientLoop() {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    void add(SimulatedPlayer player) {
+        added.add(player);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the loop and closes all its connections.
+     *
+     * @return the latencies recorded by the loop
+     * @throws InterruptedException If interrupted while waiting for the loop to stop
+     */
+    LoadStats.Latencies stop() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        thread.join();
+        return latencies;
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    LoadStats.Latencies getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(100);
+                SimulatedPlayer player;
+                while ((player = added.poll()) != null) {
+                    player.connect();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SimulatedPlayer owner = (SimulatedPlayer) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isConnectable()) {
+                        owner.onConnectable();
+                    } else {
+                        if (key.isReadable()) {
+                            owner.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            owner.onWritable();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Client loop failed: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((SimulatedPlayer) key.attachment()).stop();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // the run is over anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package cz.vse.loadgen;
+
+/**
+ * Log-linear histogram of non-negative values.
+ * Every power of two is split into 64 buckets, so percentiles are exact to within 1.6 % in constant memory,
+ * whatever the number of values recorded. Not thread safe, every client loop records into its own histograms.
+ */
+final class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS; // Values below are counted exactly
+
+    private final long[] counts = new long[LINEAR + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+    private long count;
+    private long max;
+
+    void record(long value) {
+        value = Math.max(0, value);
+        counts[index(value)]++;
+        count++;
+        max = Math.max(max, value);
+    }
+
+    void add(Histogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile the percentile between 0 and 100
+     * @return the lowest value of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    long getPercentile(double percentile) {
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(lowestValue(i), max);
+            }
+        }
+        return 0;
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // At least one
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long lowestValue(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return sub << shift;
+    }
+}
@@ -0,0 +1,144 @@
+package cz.vse.loadgen;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless load generator playing full games against a running server.
+ * Opens the given number of connections spread over a few selector threads, every connection plays like a real client,
+ * see {@link SimulatedPlayer}. Prints the progress every few seconds and a summary with throughput,
+ * command latency percentiles, match wait, game duration and error counts at the end.
+ * <p>
+ * Usage: {@code java -cp target/benchmarks.jar cz.vse.loadgen.LoadGenerator [--option value]...}, see {@link Options}.
+ */
+public class LoadGenerator {
+
+    /**
+     * Options of a run, given on the command line as {@code --name value}.
+     */
+    static final class Options {
+        String host = "127.0.0.1";
+        int port = 9091;
+        int players = 1000; // Concurrent connections, use an even number so nobody waits forever
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int duration = 0; // Seconds of repeated games, 0 plays one game per player
+        int rate = 0; // New connections per second during the ramp up, 0 connects all at once
+        int pingEvery = 10; // Sends a PING after every n-th shot, 0 never pings
+        int report = 5; // Seconds between progress reports
+        boolean reconnectOnError = false;
+        boolean binary = false; // Speak the binary protocol after logging in
+        long deadline;
+
+        boolean keepPlaying() {
+            return duration > 0 && System.nanoTime() < deadline;
+        }
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i += 2) {
+                if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Expected --option value, got: " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i].substring(2)) {
+                    case "host": options.host = value; break;
+                    case "port": options.port = Integer.parseInt(value); break;
+                    case "players": options.players = Integer.parseInt(value); break;
+                    case "threads": options.threads = Integer.parseInt(value); break;
+                    case "duration": options.duration = Integer.parseInt(value); break;
+                    case "rate": options.rate = Integer.parseInt(value); break;
+                    case "pingEvery": options.pingEvery = Integer.parseInt(value); break;
+                    case "report": options.report = Integer.parseInt(value); break;
+                    case "reconnectOnError": options.reconnectOnError = Boolean.parseBoolean(value); break;
+                    case "binary": options.binary = Boolean.parseBoolean(value); break;
+                    default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            return options;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = Options.parse(args);
+        LoadStats stats = new LoadStats();
+        CountDownLatch finished = new CountDownLatch(options.players);
+        String run = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+
+        System.out.printf("Running %d players against %s:%d on %d threads%n", options.players, options.host, options.port, options.threads);
+        ClientLoop[] loops = new ClientLoop[options.threads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new ClientLoop();
+            loops[i].start("loadgen-" + i);
+        }
+
+        long startedAt = System.nanoTime();
+        options.deadline = startedAt + TimeUnit.SECONDS.toNanos(options.duration);
+        long nextReport = startedAt + TimeUnit.SECONDS.toNanos(options.report);
+        for (int i = 0; i < options.players; i++) {
+            ClientLoop loop = loops[i % loops.length];
+            loop.add(new SimulatedPlayer("lg" + run + "-" + i, loop, stats, options, finished));
+            if (options.rate > 0) {
+                long due = startedAt + TimeUnit.SECONDS.toNanos(i + 1) / options.rate;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            if (System.nanoTime() >= nextReport) {
+                report(stats, startedAt);
+                nextReport += TimeUnit.SECONDS.toNanos(options.report);
+            }
+        }
+
+        // Players still waiting for an opponent or stuck in a game are given up a while after the deadline
+        long giveUpAt = options.deadline + TimeUnit.SECONDS.toNanos(options.duration > 0 ? 30 : 300);
+        while (!finished.await(Math.min(nextReport, giveUpAt) - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            if (System.nanoTime() >= giveUpAt) {
+                System.out.printf("Giving up on %d players that didn't finish%n", finished.getCount());
+                break;
+            }
+            report(stats, startedAt);
+            nextReport += TimeUnit.SECONDS.toNanos(options.report);
+        }
+
+        long elapsed = System.nanoTime() - startedAt;
+        LoadStats.Latencies latencies = new LoadStats.Latencies();
+        for (ClientLoop loop : loops) {
+            latencies.add(loop.stop());
+        }
+        summary(stats, latencies, elapsed);
+    }
+
+    private static void report(LoadStats stats, long startedAt) {
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        System.out.printf(Locale.ROOT, "[%6.1fs] connections %d, games %d, commands %d (%.0f/s), errors %d%n",
+                seconds, stats.connections.sum(), stats.games.sum(), stats.commands.sum(), stats.commands.sum() / seconds,
+                stats.connectFailures.sum() + stats.failures.sum() + stats.disconnects.sum());
+    }
+
+    private static void summary(LoadStats stats, LoadStats.Latencies latencies, long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Duration      %.1f s%n", seconds);
+        System.out.printf(Locale.ROOT, "Connections   %d%n", stats.connections.sum());
+        System.out.printf(Locale.ROOT, "Games         %d (%.1f/s)%n", stats.games.sum(), stats.games.sum() / seconds);
+        System.out.printf(Locale.ROOT, "Commands      %d (%.0f/s)%n", stats.commands.sum(), stats.commands.sum() / seconds);
+        System.out.println();
+        System.out.printf("%-14s %10s %10s %10s %10s %10s%n", "Latency [ms]", "count", "p50", "p99", "p999", "max");
+        print("PLACE", latencies.place);
+        print("BOMB", latencies.bomb);
+        print("PING", latencies.ping);
+        print("match wait", latencies.matchWait);
+        print("game", latencies.gameDuration);
+        System.out.println();
+        System.out.printf("Errors        connect %d, FAILURE replies %d, dropped by server %d, turn timeouts %d%n",
+                stats.connectFailures.sum(), stats.failures.sum(), stats.disconnects.sum(), stats.timeouts.sum());
+    }
+
+    private static void print(String name, Histogram histogram) {
+        System.out.printf(Locale.ROOT, "%-14s %10d %10.3f %10.3f %10.3f %10.3f%n", name, histogram.getCount(),
+                histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6,
+                histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+    }
+}
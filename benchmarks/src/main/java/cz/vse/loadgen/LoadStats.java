@@ -0,0 +1,37 @@
+package cz.vse.loadgen;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of a load run.
+ * The counters are shared by all client loops and read by the progress reports while the run goes on.
+ * The histograms are owned by one loop each and merged once the loops stopped.
+ */
+final class LoadStats {
+    final LongAdder connections = new LongAdder();
+    final LongAdder commands = new LongAdder();
+    final LongAdder games = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+
+    /**
+     * Histograms of one client loop, all values in nanoseconds.
+     */
+    static final class Latencies {
+        final Histogram place = new Histogram();
+        final Histogram bomb = new Histogram();
+        final Histogram ping = new Histogram();
+        final Histogram matchWait = new Histogram();
+        final Histogram gameDuration = new Histogram();
+
+        void add(Latencies other) {
+            place.add(other.place);
+            bomb.add(other.bomb);
+            ping.add(other.ping);
+            matchWait.add(other.matchWait);
+            gameDuration.add(other.gameDuration);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package cz.vse.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import cz.vse.server.ShipShape;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * One player speaking the real protocol: logs in, places a legal fleet, bombs when it is its turn and quits after the game.
+ * Every command is answered before the next one of the same kind is sent, so the reply times are the command latencies.
+ * Until the deadline of the run the player logs in again under a new name as soon as a game ends.
+ * With {@code --binary true} the player switches to the binary protocol when logging in.
+ * Runs on the thread of its {@link ClientLoop} only.
+ */
+final class SimulatedPlayer {
+    private static final String[] FLEET = {
+            "PLACE 1 1 SIX_SHAPE 0",
+            "PLACE 1 6 FOUR_SHAPE 0",
+            "PLACE 4 1 FOUR_SHAPE 0",
+            "PLACE 4 6 BLOCK_SHAPE 0",
+            "PLACE 7 1 BLOCK_SHAPE 0",
+            "PLACE 7 5 TWO_SHAPE 0",
+            "PLACE 10 9 TWO_SHAPE 0"
+    };
+    private static final byte[][] FLEET_FRAMES = frames(FLEET);
+    private static final byte[] PING = {1, 5};
+    private static final byte[] QUIT = {1, 6};
+    private static final byte BOMB = 3;
+    // Server messages by binary opcode, as the start of the text line they stand for
+    private static final String[] REPLIES = {
+            null, "SUCCESS", "FAILURE", "READY", "TURN", "HIT ", "MISS ", "WIN", "LOST", "QUIT", "PONG", "TIMEOUT"
+    };
+    private static final int CELLS = 100;
+
+    private enum Pending { NONE, PLACE, BOMB }
+
+    private final String name;
+    private final ClientLoop loop;
+    private final LoadStats stats;
+    private final LoadGenerator.Options options;
+    private final CountDownLatch finished;
+    private final Random random;
+    private final ByteBuffer in = ByteBuffer.allocate(1024);
+    private final ByteBuffer out = ByteBuffer.allocate(4096);
+    private final int[] shots = new int[CELLS];
+    private SocketChannel channel;
+    private SelectionKey key;
+    private int game;
+    private boolean inGame;
+    private boolean done;
+    private long loginAt;
+    private long readyAt;
+    private int placed;
+    private int shot;
+    private Pending pending = Pending.NONE;
+    private long pendingSince;
+    private long pingSince;
+
+    private static byte[][] frames(String[] placements) {
+        byte[][] frames = new byte[placements.length][];
+        for (int i = 0; i < placements.length; i++) {
+            String[] parts = placements[i].split(" ");
+            int x = Integer.parseInt(parts[1]);
+            int y = Integer.parseInt(parts[2]);
+            int shape = ShipShape.valueOf(parts[3]).ordinal();
+            frames[i] = new byte[]{3, 2, (byte) (x << 4 | y), (byte) (shape << 4 | Integer.parseInt(parts[4]))};
+        }
+        return frames;
+    }
+
+    SimulatedPlayer(String name, ClientLoop loop, LoadStats stats, LoadGenerator.Options options, CountDownLatch finished) {
+        this.name = name;
+        this.loop = loop;
+        this.stats = stats;
+        this.options = options;
+        this.finished = finished;
+        this.random = new Random(name.hashCode());
+        for (int i = 0; i < CELLS; i++) {
+            shots[i] = i;
+        }
+    }
+
+    void connect() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+            if (channel.connect(new InetSocketAddress(options.host, options.port))) {
+                onConnected();
+            }
+        } catch (IOException e) {
+            stats.connectFailures.increment();
+            endGame(false);
+        }
+    }
+
+    void onConnectable() {
+        try {
+            channel.finishConnect();
+            onConnected();
+        } catch (IOException e) {
+            stats.connectFailures.increment();
+            endGame(false);
+        }
+    }
+
+    private void onConnected() {
+        stats.connections.increment();
+        key.interestOps(SelectionKey.OP_READ);
+        game++;
+        inGame = true;
+        placed = 0;
+        shot = 0;
+        pending = Pending.NONE;
+        pingSince = 0;
+        in.clear();
+        out.clear();
+        shuffleShots();
+        loginAt = System.nanoTime();
+        send("USER " + name + "-" + game + (options.binary ? " BINARY" : ""));
+    }
+
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(in);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            if (inGame) {
+                stats.disconnects.increment();
+            }
+            endGame(false);
+            return;
+        }
+        in.flip();
+        int start = 0;
+        int current = game; // A finished game may start the next one on a new connection right away
+        if (options.binary) {
+            while (start < in.limit() && inGame && game == current) {
+                int end = start + 1 + (in.get(start) & 0xFF);
+                if (end > in.limit()) {
+                    break;
+                }
+                int code = end > start + 1 ? in.get(start + 1) : 0;
+                onLine(code > 0 && code < REPLIES.length ? REPLIES[code] : "");
+                start = end;
+            }
+        } else {
+            for (int i = 0; i < in.limit() && inGame && game == current; i++) {
+                if (in.get(i) == '\n') {
+                    onLine(new String(in.array(), start, i - start, StandardCharsets.US_ASCII));
+                    start = i + 1;
+                }
+            }
+        }
+        if (!inGame || game != current) {
+            return;
+        }
+        in.position(start);
+        in.compact();
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    private void onLine(String line) {
+        long now = System.nanoTime();
+        LoadStats.Latencies latencies = loop.getLatencies();
+        if (line.equals("READY")) {
+            readyAt = now;
+            latencies.matchWait.record(now - loginAt);
+            placeNext();
+        } else if (line.equals("SUCCESS") && pending == Pending.PLACE) {
+            complete(latencies.place, now);
+            placeNext();
+        } else if (line.equals("FAILURE")) {
+            stats.failures.increment();
+            Pending failed = pending;
+            pending = Pending.NONE;
+            if (failed == Pending.PLACE) {
+                placeNext();
+            }
+        } else if (line.equals("TURN")) {
+            bomb();
+        } else if ((line.startsWith("HIT ") || line.startsWith("MISS ")) && pending == Pending.BOMB) {
+            complete(latencies.bomb, now);
+            if (options.pingEvery > 0 && shot % options.pingEvery == 0 && pingSince == 0) {
+                pingSince = now;
+                stats.commands.increment();
+                if (options.binary) {
+                    send(PING);
+                } else {
+                    send("PING");
+                }
+            }
+        } else if (line.equals("PONG")) {
+            if (pingSince != 0) {
+                latencies.ping.record(now - pingSince);
+                pingSince = 0;
+            }
+        } else if (line.equals("TIMEOUT")) {
+            stats.timeouts.increment();
+        } else if (line.equals("WIN") || line.equals("LOST")) {
+            stats.games.increment();
+            latencies.gameDuration.record(now - readyAt);
+            if (options.binary) {
+                send(QUIT);
+            } else {
+                send("QUIT");
+            }
+            endGame(true);
+        } else if (line.equals("QUIT")) {
+            stats.disconnects.increment(); // The server sends QUIT on its own only when it drops the client
+            endGame(false);
+        }
+    }
+
+    private void placeNext() {
+        if (placed < FLEET.length) {
+            start(Pending.PLACE);
+            if (options.binary) {
+                send(FLEET_FRAMES[placed++]);
+            } else {
+                send(FLEET[placed++]);
+            }
+        }
+    }
+
+    private void bomb() {
+        if (shot < CELLS && pending != Pending.BOMB) {
+            int cell = shots[shot++];
+            start(Pending.BOMB);
+            if (options.binary) {
+                send(new byte[]{2, BOMB, (byte) ((cell / 10 + 1) << 4 | (cell % 10 + 1))});
+            } else {
+                send("BOMB " + (cell / 10 + 1) + " " + (cell % 10 + 1));
+            }
+        }
+    }
+
+    private void start(Pending command) {
+        pending = command;
+        pendingSince = System.nanoTime();
+        stats.commands.increment();
+    }
+
+    private void complete(Histogram histogram, long now) {
+        histogram.record(now - pendingSince);
+        pending = Pending.NONE;
+    }
+
+    private void shuffleShots() {
+        for (int i = CELLS - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int cell = shots[i];
+            shots[i] = shots[j];
+            shots[j] = cell;
+        }
+    }
+
+    private void send(String line) {
+        if (channel == null || !channel.isOpen()) {
+            return;
+        }
+        if (out.remaining() < line.length() + 1) {
+            stats.failures.increment(); // The server stopped reading, give the message up
+            return;
+        }
+        for (int i = 0; i < line.length(); i++) {
+            out.put((byte) line.charAt(i));
+        }
+        out.put((byte) '\n');
+        flush();
+    }
+
+    private void send(byte[] frame) {
+        if (channel == null || !channel.isOpen()) {
+            return;
+        }
+        if (out.remaining() < frame.length) {
+            stats.failures.increment(); // The server stopped reading, give the message up
+            return;
+        }
+        out.put(frame);
+        flush();
+    }
+
+    private void flush() {
+        try {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        } catch (IOException e) {
+            stats.disconnects.increment();
+            endGame(false);
+        }
+    }
+
+    /**
+     * Closes the connection and either starts the next game or finishes the player.
+     *
+     * @param completed true if the game was played to the end
+     */
+    private void endGame(boolean completed) {
+        inGame = false;
+        close();
+        if (!done && options.keepPlaying() && (completed || options.reconnectOnError)) {
+            connect();
+        } else {
+            finish();
+        }
+    }
+
+    /**
+     * Closes the connection at the end of the run.
+     */
+    void stop() {
+        inGame = false;
+        close();
+        finish();
+    }
+
+    private void finish() {
+        if (!done) {
+            done = true;
+            finished.countDown();
+        }
+    }
+
+    private void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing more to do with this connection
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package cz.vse.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the bot: placing its fleet, choosing a shot and playing a whole game against a fleet on a board.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BotBenchmark {
+    private static final int SHOTS_BEFORE = 30;
+    private static final ShipShape[] SHAPES = ShipShape.values();
+
+    private final int[] ships = new int[BotPlayer.fleetSize()];
+    private final int[] placed = new int[BotPlayer.fleetSize()];
+    private final Board target = new HeapBoard();
+    private BotPlayer bot;
+    private BotPlayer midGame;
+
+    @Setup
+    public void setup() {
+        bot = new BotPlayer(42);
+        bot.placeFleet(ships);
+        midGame = new BotPlayer(7);
+        fill(target);
+        for (int i = 0; i < SHOTS_BEFORE; i++) {
+            play(midGame, midGame.nextShot());
+        }
+    }
+
+    private void fill(Board board) {
+        board.clear();
+        for (int ship : ships) {
+            int cell = ship & 0xFF;
+            board.placeShip(PlacementTable.lookup(SHAPES[ship >> 16], (ship >> 8) & 0xFF, cell / Board.SIZE, cell % Board.SIZE));
+        }
+    }
+
+    private void play(BotPlayer player, int shot) {
+        int result = target.bomb(shot);
+        player.record(shot, result != Board.MISS);
+        if (result == Board.SUNK) {
+            player.sunk(shot);
+        }
+    }
+
+    /**
+     * Places the bot's fleet on an empty board.
+     */
+    @Benchmark
+    public int[] placeFleet() {
+        bot.placeFleet(placed);
+        return placed;
+    }
+
+    /**
+     * Chooses a shot 30 shots into a game, the middle of a typical one.
+     */
+    @Benchmark
+    public int nextShot() {
+        return midGame.nextShot();
+    }
+
+    /**
+     * Plays the bot's side of a whole game, shooting until the fleet on the board is sunk.
+     * The board is cleared and the fleet placed again for every invocation, which is included in the time.
+     *
+     * @return the number of shots the bot needed
+     */
+    @Benchmark
+    public int game() {
+        fill(target);
+        bot.reset();
+        int shots = 0;
+        while (!target.allShipsSunk()) {
+            play(bot, bot.nextShot());
+            shots++;
+        }
+        return shots;
+    }
+}
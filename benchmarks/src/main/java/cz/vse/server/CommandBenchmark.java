@@ -0,0 +1,73 @@
+package cz.vse.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks decoding a protocol line and processing the decoded command with {@link Message#process(Command)}.
+ * Decoding the same command from a frame of the binary protocol is measured for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+    @Param({"BOMB 3 7", "PLACE 10 9 TWO_SHAPE 1", "PING", "USER alice", "NONSENSE 1 2"})
+    public String line;
+
+    private byte[] bytes;
+    private byte[] frame;
+    private CommandParser parser;
+    private Message message;
+
+    @Setup
+    public void setup() {
+        bytes = Fixtures.line(line);
+        parser = new CommandParser();
+        frame = Fixtures.frame(parser.parse(bytes, 0, bytes.length));
+        GameSession session = Fixtures.newSession(Fixtures.newServer(), Runnable::run);
+        message = new Message(session.getPlayer1());
+    }
+
+    /**
+     * Decodes the line only.
+     */
+    @Benchmark
+    public Command parse() {
+        return parser.parse(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decodes the binary frame of the same command only. USER has no binary frame and decodes as malformed.
+     */
+    @Benchmark
+    public Command parseBinary() {
+        return parser.parseBinary(frame, 0, frame.length);
+    }
+
+    /**
+     * Decodes the line and processes it during the placement phase, including the reply.
+     * PLACE keeps failing after the first success because the ship is already placed, which is still a full validation.
+     */
+    @Benchmark
+    public Command parseAndProcess() throws IOException {
+        Command command = parser.parse(bytes, 0, bytes.length);
+        message.process(command);
+        return command;
+    }
+}
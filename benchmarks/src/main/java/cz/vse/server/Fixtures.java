@@ -0,0 +1,126 @@
+package cz.vse.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * Builds servers, players and sessions for the benchmarks without opening any socket.
+ */
+public final class Fixtures {
+
+    /**
+     * A legal fleet of seven ships as x, y, shape and rotation, the same layout for both players.
+     */
+    static final Object[][] FLEET = {
+            {1, 1, ShipShape.SIX_SHAPE, 0},
+            {1, 6, ShipShape.FOUR_SHAPE, 0},
+            {4, 1, ShipShape.FOUR_SHAPE, 0},
+            {4, 6, ShipShape.BLOCK_SHAPE, 0},
+            {7, 1, ShipShape.BLOCK_SHAPE, 0},
+            {7, 5, ShipShape.TWO_SHAPE, 0},
+            {10, 9, ShipShape.TWO_SHAPE, 0}
+    };
+
+    private static final ServerConfig CONFIG = newConfig();
+
+    private Fixtures() {
+    }
+
+    /**
+     * Creates a server that is never started. Timeouts are disabled, the timing wheel doesn't run.
+     *
+     * @return the server
+     */
+    static Server newServer() {
+        return new Server(0, CONFIG);
+    }
+
+    /**
+     * Creates a logged in player on a connection that discards everything.
+     *
+     * @param server   the server of the player
+     * @param username the username
+     * @return the player
+     */
+    static ClientHandler newPlayer(Server server, String username) {
+        ClientHandler player = new ClientHandler(new NullConnection(), server);
+        player.setUsername(username);
+        player.setLoggedIn(true);
+        return player;
+    }
+
+    /**
+     * Pairs two new players into a session whose mailbox runs on the given pool.
+     *
+     * @param server the server of the players
+     * @param pool   the pool of the session's mailbox
+     * @return the session, already assigned to both players
+     */
+    static GameSession newSession(Server server, Executor pool) {
+        ClientHandler player1 = newPlayer(server, "player1");
+        ClientHandler player2 = newPlayer(server, "player2");
+        GameSession session = new GameSession(player1, player2, pool, server.getTimer(), CONFIG, server.getMetrics());
+        player1.setGameSession(session);
+        player2.setGameSession(session);
+        return session;
+    }
+
+    private static ServerConfig newConfig() {
+        Properties properties = new Properties();
+        properties.setProperty("timeout.idleSeconds", "0");
+        properties.setProperty("timeout.placementSeconds", "0");
+        properties.setProperty("timeout.turnSeconds", "0");
+        return new ServerConfig(properties);
+    }
+
+    /**
+     * Places the whole {@link #FLEET} for a player.
+     *
+     * @param game   the game
+     * @param player the player owning the board
+     */
+    static void placeFleet(Game game, ClientHandler player) {
+        for (Object[] ship : FLEET) {
+            game.place((Integer) ship[0], (Integer) ship[1], (ShipShape) ship[2], (Integer) ship[3], player);
+        }
+    }
+
+    /**
+     * @return the PLACE lines of the {@link #FLEET}
+     */
+    static byte[][] fleetLines() {
+        byte[][] lines = new byte[FLEET.length][];
+        for (int i = 0; i < FLEET.length; i++) {
+            Object[] ship = FLEET[i];
+            lines[i] = line("PLACE " + ship[0] + " " + ship[1] + " " + ship[2] + " " + ship[3]);
+        }
+        return lines;
+    }
+
+    static byte[] line(String line) {
+        return line.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Encodes a command as a frame of the binary protocol, without the length prefix.
+     *
+     * @param command a decoded text command
+     * @return the opcode and the packed arguments, an unknown opcode for an unknown command
+     */
+    static byte[] frame(Command command) {
+        if (command.getType() == null) {
+            return new byte[]{(byte) 0x7F};
+        }
+        byte code = (byte) command.getType().getCode();
+        switch (command.getType()) {
+            case BOMB:
+                return new byte[]{code, (byte) (command.getX() << 4 | command.getY())};
+            case PLACE:
+                return new byte[]{code, (byte) (command.getX() << 4 | command.getY()),
+                        (byte) (command.getShape().ordinal() << 4 | command.getRotation())};
+            default:
+                return new byte[]{code};
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package cz.vse.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the rules engine: placing ships, bombing and checking for the end of the game,
+ * with the boards on the heap and in an off-heap {@link BoardSlab}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameBenchmark {
+    @Param({"heap", "slab"})
+    public String boards;
+
+    private ClientHandler player2;
+    private Game game;
+
+    @Setup
+    public void setup() {
+        GameSession session = Fixtures.newSession(Fixtures.newServer(), Runnable::run);
+        player2 = session.getPlayer2();
+        game = session.getGame();
+        if (boards.equals("slab")) {
+            game.store(new BoardSlab(1), 0);
+            game.initializeGame();
+        }
+        Fixtures.placeFleet(game, session.getPlayer1());
+        Fixtures.placeFleet(game, player2);
+    }
+
+    /**
+     * Places a whole fleet on a cleared board, one operation is one PLACE.
+     */
+    @Benchmark
+    @OperationsPerInvocation(7)
+    public void place(Blackhole blackhole) {
+        game.initializeGame();
+        for (Object[] ship : Fixtures.FLEET) {
+            blackhole.consume(game.place((Integer) ship[0], (Integer) ship[1], (ShipShape) ship[2], (Integer) ship[3], player2));
+        }
+    }
+
+    /**
+     * Bombs every cell of a board holding a fleet, one operation is one BOMB.
+     * The board is cleared and the fleet placed again for every invocation, which is included in the time.
+     */
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public void bomb(Blackhole blackhole) {
+        game.initializeGame();
+        Fixtures.placeFleet(game, player2);
+        for (int x = 1; x <= 10; x++) {
+            for (int y = 1; y <= 10; y++) {
+                blackhole.consume(game.bomb(x, y));
+            }
+        }
+    }
+
+    /**
+     * Checks a game in progress for the winner, which is what happens after every turn.
+     */
+    @Benchmark
+    public boolean checkForWin() {
+        return game.checkForWin();
+    }
+}
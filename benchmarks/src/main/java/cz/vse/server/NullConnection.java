@@ -0,0 +1,36 @@
+package cz.vse.server;
+
+/**
+ * Connection that discards everything sent to it, so the benchmarks measure the game logic and not a socket.
+ */
+public class NullConnection implements Connection {
+    private long sent;
+    private boolean closed;
+
+    @Override
+    public void send(Reply message) {
+        sent++;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "benchmark";
+    }
+
+    /**
+     * @return the number of messages sent so far, consumed by the benchmarks so the sends aren't optimized away
+     */
+    public long getSent() {
+        return sent;
+    }
+}
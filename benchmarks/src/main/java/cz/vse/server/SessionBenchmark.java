@@ -0,0 +1,83 @@
+package cz.vse.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays whole games in process, from pairing to the win, through the same path a received line takes:
+ * {@link ClientHandler#handleLine(byte[], int, int)}, the session mailbox, {@link Message} and {@link Game}.
+ * The sessions are played interleaved, one move per session in turn, and the result is the time to finish all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionBenchmark {
+
+    @Param({"1", "100"})
+    public int sessions;
+
+    private Server server;
+    private byte[][] fleet;
+    private byte[][] shots;
+
+    @Setup
+    public void setup() {
+        server = Fixtures.newServer();
+        fleet = Fixtures.fleetLines();
+        shots = new byte[Board.CELLS][];
+        for (int x = 1; x <= Board.SIZE; x++) {
+            for (int y = 1; y <= Board.SIZE; y++) {
+                shots[(x - 1) * Board.SIZE + y - 1] = Fixtures.line("BOMB " + x + " " + y);
+            }
+        }
+    }
+
+    @Benchmark
+    public int playGames() throws IOException {
+        GameSession[] games = new GameSession[sessions];
+        for (int i = 0; i < sessions; i++) {
+            games[i] = Fixtures.newSession(server, Runnable::run);
+            games[i].start();
+        }
+
+        for (byte[] line : fleet) {
+            for (GameSession game : games) {
+                game.getPlayer1().handleLine(line, 0, line.length);
+                game.getPlayer2().handleLine(line, 0, line.length);
+            }
+        }
+
+        // Every player shoots the cells in order until one fleet is sunk
+        int[][] nextShot = new int[sessions][2];
+        int running = sessions;
+        while (running > 0) {
+            running = 0;
+            for (int i = 0; i < sessions; i++) {
+                GameSession game = games[i];
+                if (game.isFinished()) {
+                    continue;
+                }
+                running++;
+                int player = game.isPlayer1Turn() ? 0 : 1;
+                byte[] line = shots[nextShot[i][player]++];
+                game.getCurrentPlayer().handleLine(line, 0, line.length);
+            }
+        }
+        return games.length;
+    }
+}
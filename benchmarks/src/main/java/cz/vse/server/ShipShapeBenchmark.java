@@ -0,0 +1,50 @@
+package cz.vse.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares rotating a ship shape on the fly with looking the placement up in the {@link PlacementTable}.
+ * One operation covers one shape in one rotation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShipShapeBenchmark {
+    private static final ShipShape[] SHAPES = ShipShape.values();
+    private static final int OPERATIONS = 4 * 4;
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void rotate(Blackhole blackhole) {
+        for (ShipShape shape : SHAPES) {
+            for (int rotation = 0; rotation < 4; rotation++) {
+                blackhole.consume(shape.getShape(rotation));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void lookup(Blackhole blackhole) {
+        for (ShipShape shape : SHAPES) {
+            for (int rotation = 0; rotation < 4; rotation++) {
+                blackhole.consume(PlacementTable.lookup(shape, rotation, 3, 3));
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package cz.vse.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class represents the 10x10 board of one player as bitboards.
+ * Every layer (ships, hits, misses) is a 100-bit mask split into two longs:
+ * cells 0-63 live in the low word and cells 64-99 in the high word.
+ * The cell index of the 0-based coordinates x, y is {@code x * 10 + y}.
+ * Next to the masks the board indexes its ships: the ship of every cell and the cells of each ship not hit yet,
+ * so a shot tells in O(1) whether it sank a ship and whether it was the last one.
+ * The rules are implemented here once, over a few accessors of the state;
+ * where the state lives is up to the subclass: {@link HeapBoard} keeps it in fields,
+ * {@link SlabBoard} in a slot of an off-heap {@link BoardSlab}.
+ */
+public abstract class Board {
+    public static final int SIZE = 10;
+    public static final int CELLS = SIZE * SIZE;
+
+    /**
+     * Results of {@link #bomb(int)}.
+     */
+    public static final int MISS = 0;
+    public static final int HIT = 1;
+    public static final int ALREADY_BOMBED = 2;
+    public static final int SUNK = 3;
+
+    static final int MAX_SHIPS = CELLS / 2; // Every shape covers at least two cells
+
+    /**
+     * The layers of the board, each a long of {@link #layer(int)}.
+     */
+    static final int SHIPS_LO = 0;
+    static final int SHIPS_HI = 1;
+    static final int HITS_LO = 2;
+    static final int HITS_HI = 3;
+    static final int MISSES_LO = 4;
+    static final int MISSES_HI = 5;
+    static final int LAYERS = 6;
+
+    /**
+     * The most bytes {@link #save(ByteBuffer)} writes.
+     */
+    static final int SAVED_BYTES = 1 + MAX_SHIPS * Short.BYTES + 4 * Long.BYTES;
+
+    /**
+     * Converts 0-based coordinates to a cell index.
+     *
+     * @param x x coordinate (row)
+     * @param y y coordinate (column)
+     * @return the cell index
+     */
+    public static int cell(int x, int y) {
+        return x * SIZE + y;
+    }
+
+    /**
+     * @param cell the cell index
+     * @return the bit of the cell in the low word, 0 if the cell lives in the high word
+     */
+    public static long lowBit(int cell) {
+        return cell < 64 ? 1L << cell : 0L;
+    }
+
+    /**
+     * @param cell the cell index
+     * @return the bit of the cell in the high word, 0 if the cell lives in the low word
+     */
+    public static long highBit(int cell) {
+        return cell >= 64 ? 1L << (cell - 64) : 0L;
+    }
+
+    /**
+     * Clears all layers and forgets the ships, leaving an empty board.
+     */
+    public abstract void clear();
+
+    abstract long layer(int layer);
+
+    abstract void setLayer(int layer, long bits);
+
+    /**
+     * @param cell the cell index
+     * @return the index of the ship in the cell plus one, 0 for water
+     */
+    abstract int shipAt(int cell);
+
+    abstract void setShipAt(int cell, int ship);
+
+    /**
+     * @param ship the index of the ship, in the order the ships were placed
+     * @return the placement handle of the ship
+     */
+    abstract int placement(int ship);
+
+    abstract void setPlacement(int ship, int placement);
+
+    /**
+     * @param ship the index of the ship
+     * @return the number of cells of the ship not hit yet
+     */
+    abstract int shipCellsLeft(int ship);
+
+    abstract void setShipCellsLeft(int ship, int cells);
+
+    /**
+     * @return the number of ships placed
+     */
+    abstract int ships();
+
+    abstract void setShips(int ships);
+
+    /**
+     * @return the number of ship cells on the board not hit yet
+     */
+    abstract int cellsLeft();
+
+    abstract void setCellsLeft(int cells);
+
+    public boolean isShip(int cell) {
+        return ((layer(SHIPS_LO) & lowBit(cell)) | (layer(SHIPS_HI) & highBit(cell))) != 0;
+    }
+
+    public boolean isHit(int cell) {
+        return ((layer(HITS_LO) & lowBit(cell)) | (layer(HITS_HI) & highBit(cell))) != 0;
+    }
+
+    public boolean isMissed(int cell) {
+        return ((layer(MISSES_LO) & lowBit(cell)) | (layer(MISSES_HI) & highBit(cell))) != 0;
+    }
+
+    /**
+     * Checks if the ship would overlap a ship already on the board.
+     *
+     * @param placement the placement handle from {@link PlacementTable#lookup}
+     * @return true if any cell of the ship is already occupied
+     */
+    public boolean overlaps(int placement) {
+        return ((layer(SHIPS_LO) & PlacementTable.occupiedLo(placement))
+                | (layer(SHIPS_HI) & PlacementTable.occupiedHi(placement))) != 0;
+    }
+
+    /**
+     * Checks if the ship would touch a ship already on the board, diagonals included.
+     *
+     * @param placement the placement handle from {@link PlacementTable#lookup}
+     * @return true if any cell around the ship is occupied
+     */
+    public boolean touches(int placement) {
+        return ((layer(SHIPS_LO) & PlacementTable.haloLo(placement))
+                | (layer(SHIPS_HI) & PlacementTable.haloHi(placement))) != 0;
+    }
+
+    /**
+     * Puts the ship on the board. The placement must have been validated before.
+     *
+     * @param placement the placement handle from {@link PlacementTable#lookup}
+     */
+    public void placeShip(int placement) {
+        long lo = PlacementTable.occupiedLo(placement);
+        long hi = PlacementTable.occupiedHi(placement);
+        setLayer(SHIPS_LO, layer(SHIPS_LO) | lo);
+        setLayer(SHIPS_HI, layer(SHIPS_HI) | hi);
+        int ship = ships();
+        int cells = Long.bitCount(lo) + Long.bitCount(hi);
+        setShips(ship + 1);
+        setPlacement(ship, placement);
+        setShipCellsLeft(ship, cells);
+        setCellsLeft(cellsLeft() + cells);
+        for (; lo != 0; lo &= lo - 1) {
+            setShipAt(Long.numberOfTrailingZeros(lo), ship + 1);
+        }
+        for (; hi != 0; hi &= hi - 1) {
+            setShipAt(64 + Long.numberOfTrailingZeros(hi), ship + 1);
+        }
+    }
+
+    /**
+     * Bombs the cell and records the result.
+     *
+     * @param cell the cell index
+     * @return {@link #HIT}, {@link #SUNK} if it was the last cell of the ship not hit yet, {@link #MISS} or {@link #ALREADY_BOMBED}
+     */
+    public int bomb(int cell) {
+        long lo = lowBit(cell);
+        long hi = highBit(cell);
+        long hitsLo = layer(HITS_LO);
+        long hitsHi = layer(HITS_HI);
+        if ((((hitsLo | layer(MISSES_LO)) & lo) | ((hitsHi | layer(MISSES_HI)) & hi)) != 0) {
+            return ALREADY_BOMBED;
+        }
+        if (((layer(SHIPS_LO) & lo) | (layer(SHIPS_HI) & hi)) != 0) {
+            setLayer(HITS_LO, hitsLo | lo);
+            setLayer(HITS_HI, hitsHi | hi);
+            setCellsLeft(cellsLeft() - 1);
+            int ship = shipAt(cell) - 1;
+            int left = shipCellsLeft(ship) - 1;
+            setShipCellsLeft(ship, left);
+            return left == 0 ? SUNK : HIT;
+        }
+        setLayer(MISSES_LO, layer(MISSES_LO) | lo);
+        setLayer(MISSES_HI, layer(MISSES_HI) | hi);
+        return MISS;
+    }
+
+    /**
+     * @param cell the cell index of a ship
+     * @return the shape of the ship in the cell
+     */
+    public ShipShape shapeAt(int cell) {
+        return PlacementTable.shape(placement(shipAt(cell) - 1));
+    }
+
+    /**
+     * Writes the board in a compact form: the placements of the ships in the order they were placed, then the shots.
+     *
+     * @param out the buffer to write to, with at least {@link #SAVED_BYTES} bytes remaining
+     */
+    public void save(ByteBuffer out) {
+        int ships = ships();
+        out.put((byte) ships);
+        for (int ship = 0; ship < ships; ship++) {
+            out.putShort((short) placement(ship));
+        }
+        for (int layer = HITS_LO; layer <= MISSES_HI; layer++) {
+            out.putLong(layer(layer));
+        }
+    }
+
+    /**
+     * Rebuilds a board written by {@link #save(ByteBuffer)}: the ships are placed and the shots fired again,
+     * so the index of the ships is rebuilt by the rules themselves.
+     *
+     * @param in the buffer to read from
+     */
+    public void restore(ByteBuffer in) {
+        clear();
+        int ships = in.get() & 0xFF;
+        for (int ship = 0; ship < ships; ship++) {
+            placeShip(in.getShort());
+        }
+        long hitsLo = in.getLong();
+        long hitsHi = in.getLong();
+        long shotsLo = hitsLo | in.getLong();
+        long shotsHi = hitsHi | in.getLong();
+        for (; shotsLo != 0; shotsLo &= shotsLo - 1) {
+            bomb(Long.numberOfTrailingZeros(shotsLo));
+        }
+        for (; shotsHi != 0; shotsHi &= shotsHi - 1) {
+            bomb(64 + Long.numberOfTrailingZeros(shotsHi));
+        }
+    }
+
+    /**
+     * @return true if every ship cell on the board has been hit
+     */
+    public boolean allShipsSunk() {
+        return cellsLeft() == 0;
+    }
+}
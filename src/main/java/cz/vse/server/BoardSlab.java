@@ -0,0 +1,89 @@
+package cz.vse.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Off-heap storage for the boards of all running games: one direct buffer divided into slots of two {@link SlabBoard}s.
+ * A session takes a slot when it starts and gives it back when it ends; free slots are kept on a stack,
+ * so a slot is taken and given back in O(1) without allocating.
+ * The boards don't add to the heap the garbage collector has to trace, and being one block of memory,
+ * the boards of all games can be copied out at once, see {@link #copyTo(ByteBuffer)}.
+ */
+public class BoardSlab {
+    /**
+     * The bytes a slot takes: the board of the first player followed by the board of the second one.
+     */
+    public static final int SLOT_BYTES = 2 * SlabBoard.BYTES;
+
+    private final ByteBuffer buffer;
+    private final int[] free;
+    private int freeCount;
+
+    /**
+     * @param slots the number of games the slab holds
+     */
+    public BoardSlab(int slots) {
+        this.buffer = ByteBuffer.allocateDirect(Math.multiplyExact(slots, SLOT_BYTES)).order(ByteOrder.nativeOrder());
+        this.free = new int[slots];
+        for (int i = 0; i < slots; i++) {
+            free[i] = slots - 1 - i; // Lowest slots first, so the used part of the slab stays compact
+        }
+        this.freeCount = slots;
+    }
+
+    /**
+     * Takes a free slot.
+     *
+     * @return the slot, -1 if all slots are used
+     */
+    public synchronized int allocate() {
+        return freeCount > 0 ? free[--freeCount] : -1;
+    }
+
+    /**
+     * Gives back a slot. The game that had it must not touch its boards any more.
+     *
+     * @param slot the slot from {@link #allocate()}
+     */
+    public synchronized void free(int slot) {
+        free[freeCount++] = slot;
+    }
+
+    /**
+     * @param slot    the slot
+     * @param player1 true for the board of the first player, false for the second one
+     * @return the offset of the board in the slab
+     */
+    static int offset(int slot, boolean player1) {
+        return slot * SLOT_BYTES + (player1 ? 0 : SlabBoard.BYTES);
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Copies the boards of all slots with one bulk copy, slot after slot, {@link #SLOT_BYTES} each.
+     * Nothing is locked: a board changed by its game during the copy may be copied half before and half after the change.
+     *
+     * @param target the buffer to copy to, with at least {@link #getCapacity()} times {@link #SLOT_BYTES} bytes remaining
+     */
+    public void copyTo(ByteBuffer target) {
+        target.put(buffer.duplicate().clear());
+    }
+
+    /**
+     * @return the number of slots
+     */
+    public int getCapacity() {
+        return free.length;
+    }
+
+    /**
+     * @return the number of slots taken by running games
+     */
+    public synchronized int getUsed() {
+        return free.length - freeCount;
+    }
+}
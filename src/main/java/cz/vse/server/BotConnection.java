@@ -0,0 +1,136 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Connection of the server's AI opponent. There is no socket: the messages of the session are answered by a {@link BotPlayer},
+ * whose moves are handed to the bot's ClientHandler as frames of the binary protocol.
+ * The bot goes through the same command dispatch and rules as any client, so the session can't tell it from a human.
+ * Moves are made in tasks of the session's mailbox queued behind the message that asked for them,
+ * so the bot never bombs in a game that was won by the shot it is answering.
+ */
+public class BotConnection implements Connection {
+    private final BotPlayer brain = new BotPlayer(ThreadLocalRandom.current().nextLong());
+    private final int[] fleet = new int[BotPlayer.fleetSize()];
+    private final byte[] frame = new byte[3];
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private volatile ClientHandler client;
+    private volatile boolean closed = false;
+    private int shot = -1; // The cell of the shot waiting for its result, touched only in the session's mailbox
+
+    /**
+     * @param client the handler playing through this connection
+     */
+    void attach(ClientHandler client) {
+        this.client = client;
+    }
+
+    @Override
+    public void send(Reply message) {
+        if (closed) {
+            return;
+        }
+        switch (message.getType()) {
+            case READY:
+                later(this::placeFleet);
+                break;
+            case TURN:
+                later(this::bomb);
+                break;
+            case HIT:
+            case SUNK:
+            case MISS:
+                // Both players see every shot, only the first result after the bot's shot is the bot's
+                if (shot >= 0 && shot == Board.cell(message.getX() - 1, message.getY() - 1)) {
+                    brain.record(shot, message.getType() != Reply.Type.MISS);
+                    if (message.getType() == Reply.Type.SUNK) {
+                        brain.sunk(shot);
+                    }
+                    shot = -1;
+                }
+                break;
+            case WIN:
+            case LOST:
+                later(this::leave);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void later(Runnable move) {
+        GameSession session = client.getGameSession();
+        if (session != null) {
+            session.execute(move);
+        }
+    }
+
+    private void placeFleet() {
+        brain.placeFleet(fleet);
+        for (int ship : fleet) {
+            int cell = ship & 0xFF;
+            frame[0] = (byte) Message.COMMAND.PLACE.getCode();
+            frame[1] = coordinates(cell);
+            frame[2] = (byte) ((ship >> 16) << 4 | (ship >> 8) & 0xF);
+            play(3);
+        }
+    }
+
+    private void bomb() {
+        GameSession session = client.getGameSession();
+        if (session == null || session.isFinished() || !session.isPlayerTurn(client)) {
+            return;
+        }
+        shot = brain.nextShot();
+        if (shot < 0) {
+            return;
+        }
+        frame[0] = (byte) Message.COMMAND.BOMB.getCode();
+        frame[1] = coordinates(shot);
+        play(2);
+    }
+
+    private static byte coordinates(int cell) {
+        return (byte) ((cell / Board.SIZE + 1) << 4 | cell % Board.SIZE + 1);
+    }
+
+    private void play(int length) {
+        try {
+            client.handleLine(frame, 0, length);
+        } catch (IOException e) {
+            log.error("Error playing a move of bot {}: {}", client.getUsername(), e.getMessage());
+        }
+    }
+
+    private void leave() {
+        try {
+            client.closeConnection(false);
+        } catch (IOException e) {
+            log.error("Error closing bot {}: {}", client.getUsername(), e.getMessage());
+        }
+    }
+
+    @Override
+    public WireFormat getFormat() {
+        return WireFormat.BINARY;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "bot";
+    }
+}
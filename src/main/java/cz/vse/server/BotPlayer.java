@@ -0,0 +1,281 @@
+package cz.vse.server;
+
+import java.util.Arrays;
+
+/**
+ * The brain of the server's AI opponent: places a random legal fleet and chooses shots by probability density.
+ * For every shot, each placement of a ship that is still possible votes for the cells it covers:
+ * a placement covering a miss is impossible, and so is one touching a hit it doesn't cover, because ships never touch.
+ * Placements through hits the bot still has to follow up get a much larger vote, so the same count hunts and targets.
+ * Once told that a ship sank, the bot stops counting placements of its cells and, with no ship of the shape left, of the shape.
+ * The placements are the distinct masks of the {@link PlacementTable}, kept in primitive arrays,
+ * so a shot takes a few thousand mask operations and allocates nothing, and the state of a game is a few longs and an int array.
+ */
+public class BotPlayer {
+    private static final int TARGET_WEIGHT = 64;
+    private static final int MAX_ATTEMPTS = 1000;
+
+    /**
+     * The fleet a {@link GameSession} lets a player place: one SIX_SHAPE and two of every other shape.
+     */
+    private static final ShipShape[] FLEET = {
+            ShipShape.SIX_SHAPE, ShipShape.FOUR_SHAPE, ShipShape.FOUR_SHAPE, ShipShape.BLOCK_SHAPE, ShipShape.BLOCK_SHAPE,
+            ShipShape.TWO_SHAPE, ShipShape.TWO_SHAPE
+    };
+
+    private static final long[] PLACEMENTS_LO;
+    private static final long[] PLACEMENTS_HI;
+    private static final long[] HALOS_LO;
+    private static final long[] HALOS_HI;
+    private static final int[] PLACEMENT_SHAPES;
+    private static final int[] FLEET_SHIPS = new int[ShipShape.values().length]; // Number of ships of each shape
+
+    static {
+        long[] lo = new long[ShipShape.values().length * PlacementTable.ROTATIONS * Board.CELLS];
+        long[] hi = new long[lo.length];
+        long[] haloLo = new long[lo.length];
+        long[] haloHi = new long[lo.length];
+        int[] shapes = new int[lo.length];
+        int count = 0;
+        for (ShipShape ship : FLEET) {
+            FLEET_SHIPS[ship.ordinal()]++;
+        }
+        for (ShipShape shape : ShipShape.values()) {
+            int first = count;
+            for (int rotation = 0; rotation < PlacementTable.ROTATIONS; rotation++) {
+                for (int cell = 0; cell < Board.CELLS; cell++) {
+                    int placement = PlacementTable.lookup(shape, rotation, cell / Board.SIZE, cell % Board.SIZE);
+                    if (placement < 0 || contains(lo, hi, first, count, placement)) {
+                        continue; // Symmetric shapes look the same in several rotations
+                    }
+                    lo[count] = PlacementTable.occupiedLo(placement);
+                    hi[count] = PlacementTable.occupiedHi(placement);
+                    haloLo[count] = PlacementTable.haloLo(placement);
+                    haloHi[count] = PlacementTable.haloHi(placement);
+                    shapes[count] = shape.ordinal();
+                    count++;
+                }
+            }
+        }
+        PLACEMENTS_LO = Arrays.copyOf(lo, count);
+        PLACEMENTS_HI = Arrays.copyOf(hi, count);
+        HALOS_LO = Arrays.copyOf(haloLo, count);
+        HALOS_HI = Arrays.copyOf(haloHi, count);
+        PLACEMENT_SHAPES = Arrays.copyOf(shapes, count);
+    }
+
+    private final Board fleet = new HeapBoard();
+    private final int[] density = new int[Board.CELLS];
+    private final int[] shipsLeft = FLEET_SHIPS.clone();
+    private final int[] stack = new int[Board.CELLS];
+    private long shotsLo;
+    private long shotsHi;
+    private long hitsLo;
+    private long hitsHi;
+    private long sunkLo;
+    private long sunkHi;
+    private long random;
+
+    /**
+     * @param seed the seed of the bot's random choices
+     */
+    public BotPlayer(long seed) {
+        this.random = seed == 0 ? 1 : seed;
+    }
+
+    private static boolean contains(long[] lo, long[] hi, int from, int to, int placement) {
+        for (int i = from; i < to; i++) {
+            if (lo[i] == PlacementTable.occupiedLo(placement) && hi[i] == PlacementTable.occupiedHi(placement)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the shots of the previous game.
+     */
+    public void reset() {
+        shotsLo = 0;
+        shotsHi = 0;
+        hitsLo = 0;
+        hitsHi = 0;
+        sunkLo = 0;
+        sunkHi = 0;
+        System.arraycopy(FLEET_SHIPS, 0, shipsLeft, 0, shipsLeft.length);
+    }
+
+    /**
+     * Chooses a random fleet obeying the placement rules: no overlaps and no touching ships.
+     *
+     * @param ships receives the ships, each packed as {@code shape ordinal << 16 | rotation << 8 | cell}
+     *              with the 0-based cell of the top left corner; must hold 7 ships
+     */
+    public void placeFleet(int[] ships) {
+        fleet.clear();
+        for (int i = 0; i < FLEET.length; i++) {
+            int ship = place(FLEET[i]);
+            if (ship < 0) {
+                fleet.clear(); // Painted into a corner, start over
+                i = -1;
+                continue;
+            }
+            ships[i] = ship;
+        }
+    }
+
+    private int place(ShipShape shape) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            int rotation = nextInt(PlacementTable.ROTATIONS);
+            int cell = nextInt(Board.CELLS);
+            int placement = PlacementTable.lookup(shape, rotation, cell / Board.SIZE, cell % Board.SIZE);
+            if (placement >= 0 && !fleet.overlaps(placement) && !fleet.touches(placement)) {
+                fleet.placeShip(placement);
+                return shape.ordinal() << 16 | rotation << 8 | cell;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of ships in a fleet, the length {@link #placeFleet(int[])} needs
+     */
+    public static int fleetSize() {
+        return FLEET.length;
+    }
+
+    /**
+     * Chooses the cell most likely to hold a ship, ties broken at random.
+     *
+     * @return the 0-based cell to bomb, -1 if every cell was bombed
+     */
+    public int nextShot() {
+        long openLo = 0;
+        long openHi = 0;
+        // Hits next to a cell not bombed yet may belong to a ship that isn't sunk
+        for (int cell = 0; cell < Board.CELLS; cell++) {
+            if (isHit(cell) && !isSunk(cell) && hasFreeNeighbour(cell)) {
+                openLo |= Board.lowBit(cell);
+                openHi |= Board.highBit(cell);
+            }
+        }
+        long missesLo = shotsLo & ~hitsLo;
+        long missesHi = shotsHi & ~hitsHi;
+        Arrays.fill(density, 0);
+        for (int i = 0; i < PLACEMENTS_LO.length; i++) {
+            long lo = PLACEMENTS_LO[i];
+            long hi = PLACEMENTS_HI[i];
+            int ships = shipsLeft[PLACEMENT_SHAPES[i]];
+            if (ships == 0 || ((lo & (missesLo | sunkLo)) | (hi & (missesHi | sunkHi))
+                    | (HALOS_LO[i] & hitsLo) | (HALOS_HI[i] & hitsHi)) != 0) {
+                continue;
+            }
+            int weight = ships * (1 + TARGET_WEIGHT * (Long.bitCount(lo & openLo) + Long.bitCount(hi & openHi)));
+            for (long free = lo & ~shotsLo; free != 0; free &= free - 1) {
+                density[Long.numberOfTrailingZeros(free)] += weight;
+            }
+            for (long free = hi & ~shotsHi; free != 0; free &= free - 1) {
+                density[64 + Long.numberOfTrailingZeros(free)] += weight;
+            }
+        }
+
+        int best = -1;
+        int ties = 0;
+        for (int cell = 0; cell < Board.CELLS; cell++) {
+            if (isShot(cell)) {
+                continue;
+            }
+            if (best < 0 || density[cell] > density[best]) {
+                best = cell;
+                ties = 1;
+            } else if (density[cell] == density[best] && nextInt(++ties) == 0) {
+                best = cell;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Records the result of the bot's shot.
+     *
+     * @param cell the 0-based cell that was bombed
+     * @param hit  true if a ship was hit
+     */
+    public void record(int cell, boolean hit) {
+        shotsLo |= Board.lowBit(cell);
+        shotsHi |= Board.highBit(cell);
+        if (hit) {
+            hitsLo |= Board.lowBit(cell);
+            hitsHi |= Board.highBit(cell);
+        }
+    }
+
+    /**
+     * Records that the bot's hit sank a ship. Ships never touch, so the ship is all the hits connected to the cell,
+     * diagonals included, and its cells tell the shape.
+     *
+     * @param cell the 0-based cell of the hit, recorded by {@link #record(int, boolean)} before
+     */
+    public void sunk(int cell) {
+        long lo = Board.lowBit(cell);
+        long hi = Board.highBit(cell);
+        int top = 0;
+        stack[top++] = cell;
+        while (top > 0) {
+            int current = stack[--top];
+            int x = current / Board.SIZE;
+            int y = current % Board.SIZE;
+            for (int nx = Math.max(0, x - 1); nx <= Math.min(Board.SIZE - 1, x + 1); nx++) {
+                for (int ny = Math.max(0, y - 1); ny <= Math.min(Board.SIZE - 1, y + 1); ny++) {
+                    int next = Board.cell(nx, ny);
+                    if (isHit(next) && ((lo & Board.lowBit(next)) | (hi & Board.highBit(next))) == 0) {
+                        lo |= Board.lowBit(next);
+                        hi |= Board.highBit(next);
+                        stack[top++] = next;
+                    }
+                }
+            }
+        }
+        sunkLo |= lo;
+        sunkHi |= hi;
+        for (int i = 0; i < PLACEMENTS_LO.length; i++) {
+            if (PLACEMENTS_LO[i] == lo && PLACEMENTS_HI[i] == hi) {
+                int shape = PLACEMENT_SHAPES[i];
+                shipsLeft[shape] = Math.max(0, shipsLeft[shape] - 1);
+                return;
+            }
+        }
+    }
+
+    private boolean isSunk(int cell) {
+        return ((sunkLo & Board.lowBit(cell)) | (sunkHi & Board.highBit(cell))) != 0;
+    }
+
+    private boolean isShot(int cell) {
+        return ((shotsLo & Board.lowBit(cell)) | (shotsHi & Board.highBit(cell))) != 0;
+    }
+
+    private boolean isHit(int cell) {
+        return ((hitsLo & Board.lowBit(cell)) | (hitsHi & Board.highBit(cell))) != 0;
+    }
+
+    private boolean hasFreeNeighbour(int cell) {
+        int x = cell / Board.SIZE;
+        int y = cell % Board.SIZE;
+        return x > 0 && !isShot(cell - Board.SIZE)
+                || x < Board.SIZE - 1 && !isShot(cell + Board.SIZE)
+                || y > 0 && !isShot(cell - 1)
+                || y < Board.SIZE - 1 && !isShot(cell + 1);
+    }
+
+    /**
+     * @param bound the exclusive upper bound
+     * @return a pseudo-random number from 0 to bound - 1, from a xorshift generator
+     */
+    private int nextInt(int bound) {
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        return (int) ((random >>> 33) % bound);
+    }
+}
@@ -5,32 +5,73 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class handles communication with a connected client.
+ * The protocol logic lives in {@link #handleLine(byte[], int, int)}; how lines get here depends on the transport.
+ * With the blocking transport the lines are read by {@link #run()}, with the NIO transport they are pushed by the event loop.
+ * Silent clients are disconnected by an idle timeout on the server's {@link TimingWheel}, the same way for both transports.
  */
 public class ClientHandler implements Runnable {
-    private final Socket socket;
+    private final Connection connection;
+    private final SocketConnection socketConnection; // Only set for the blocking transport
     private final Server server;
-    private PrintWriter out;
-    private BufferedReader in;
-    private GameSession gameSession; // Reference to the current GameSession
+    private volatile GameSession gameSession; // Reference to the current GameSession, set by the pairing thread
+    private volatile String remoteSession; // Node running the session when it runs on another node of the cluster
+    private volatile GameSession watched; // The session the client watches as a spectator
+    private final CommandParser parser = new CommandParser();
+    private final Message message = new Message(this);
     private final Logger log = LoggerFactory.getLogger(this.getClass());
-    private boolean isClosing = false;
-    private boolean loggedIn = false;
+    private final AtomicBoolean isClosing = new AtomicBoolean();
+    private final boolean traced; // Whether the lines of this client go to the protocol trace
+    private final ConnectionLimits.Quota quota; // Null for connections the server makes itself
+    private volatile boolean loggedIn = false;
+    private volatile long lastActivity = System.nanoTime();
     private String username;
 
-    public ClientHandler(Socket socket, Server server) {
-        this.socket = socket;
+    public ClientHandler(Socket socket, Server server, ConnectionLimits.Quota quota) {
+        this.socketConnection = new SocketConnection(socket, server.newOutboundQueue(), server.getWriterExecutor(), server.getMetrics());
+        this.connection = socketConnection;
         this.server = server;
+        this.quota = quota;
+        this.traced = server.getProtocolTrace().sample();
+        server.getMetrics().clientConnected();
+    }
+
+    public ClientHandler(Connection connection, Server server) {
+        this(connection, server, null);
+    }
+
+    public ClientHandler(Connection connection, Server server, ConnectionLimits.Quota quota) {
+        this.socketConnection = null;
+        this.connection = connection;
+        this.server = server;
+        this.quota = quota;
+        this.traced = server.getProtocolTrace().sample();
+        server.getMetrics().clientConnected();
     }
 
     void setGameSession(GameSession gameSession) {
         this.gameSession = gameSession; // Set the GameSession when paired
     }
 
+    GameSession getGameSession() {
+        return gameSession;
+    }
+
+    /**
+     * Sends the client's lines to the session running on another node of the cluster.
+     *
+     * @param nodeId the node running the session
+     */
+    void setRemoteSession(String nodeId) {
+        if (gameSession == null && remoteSession == null) {
+            this.remoteSession = nodeId;
+        }
+    }
+
     void setUsername(String username) {
         this.username = username;
     }
@@ -47,88 +88,245 @@ public class ClientHandler implements Runnable {
         this.loggedIn = loggedIn;
     }
 
+    /**
+     * Makes the client a spectator of a session, for the rest of the connection.
+     *
+     * @param session       the session to watch
+     * @param highWaterMark the number of messages that may wait for the spectator
+     */
+    void watch(GameSession session, int highWaterMark) {
+        connection.limitOutbound(highWaterMark);
+        watched = session;
+        session.addSpectator(this);
+    }
+
+    /**
+     * @return true if this stands in for a player connected to another node of the cluster
+     */
+    boolean isRemote() {
+        return connection instanceof RemoteConnection;
+    }
 
+    /**
+     * @return true once the connection started closing, the client is gone from then on
+     */
+    public boolean isClosing() {
+        return isClosing.get();
+    }
+
+
+    /**
+     * Starts watching the client for inactivity.
+     * Receiving a line only records the time, the deadline is checked lazily when it expires on the wheel
+     * and then moved by the time the client was active meanwhile, so reading costs no timer operation at all.
+     */
+    public void startIdleTimeout() {
+        long timeout = TimeUnit.SECONDS.toNanos(server.getIdleTimeoutSeconds());
+        if (timeout > 0) {
+            server.getTimer().schedule(() -> checkIdle(timeout), timeout, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void checkIdle(long timeout) {
+        if (isClosing() || watched != null) {
+            return; // Spectators only listen
+        }
+        long idle = System.nanoTime() - lastActivity;
+        if (idle < timeout) {
+            server.getTimer().schedule(() -> checkIdle(timeout), timeout - idle, TimeUnit.NANOSECONDS);
+            return;
+        }
+        log.info("Client {} has been idle for {} seconds, disconnecting", this, TimeUnit.NANOSECONDS.toSeconds(idle));
+        onDisconnect();
+    }
+
+    /**
+     * Reads lines from the socket until the client disconnects.
+     * Used by the blocking transport only.
+     */
     @Override
     public void run() {
+        if (socketConnection == null) {
+            throw new IllegalStateException("ClientHandler.run() requires a blocking socket connection");
+        }
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            socketConnection.open();
+            startIdleTimeout();
 
             log.info("Client {} connected to the server", this);
 
-            while (!socket.isClosed()) {
-
-                if (isLoggedIn()){
-                    socket.setSoTimeout(60000);
-                    log.info("Timeout for client: {} has been reset", this);
-                }
-
-                String receivedMessage = in.readLine();
+            while (!socketConnection.isClosed()) {
+                boolean received = socketConnection.readLine();
 
-                if (receivedMessage == null && !socket.isClosed()) {
+                if (!received && !socketConnection.isClosed()) {
                     log.warn("Client {} disconnected unexpectedly", this.username);
                     closeConnection(loggedIn);
                     return;
                 }
-                if (receivedMessage == null) {
+                if (!received) {
                     break;
                 }
 
-                if (!isLoggedIn()) {
-                    // Handle login or user-related commands
-                    if (receivedMessage.startsWith("USER")) {
-                        String[] parts = receivedMessage.split(" ", 2);
-                        if (parts.length == 2) {
-                            setUsername(parts[1]);
-                            setLoggedIn(true);
-                            //log.info("User '{}' logged in successfully", parts[1]);
-                            server.addWaitingClient(this);
-
-                        } else {
-                            log.warn("Invalid USER command format: {}", receivedMessage);
-                            sendMessage("FAILURE");
-                        }
-                    } else {
-                        log.warn("Client not logged in. Message: {} could not be processed", receivedMessage);
-                        sendMessage("FAILURE");
-                    }
-                    continue;
-                }
-
-                if (gameSession != null) {
-                    Message message = new Message(receivedMessage, gameSession, this);
-                    message.process(receivedMessage);
-                } else {
-                    log.warn("Game session not yet started. Message: {} could not be processed", receivedMessage);
-                    sendMessage("FAILURE");
-                }
+                awaitLine();
+                handleLine(socketConnection.getBuffer(), socketConnection.getLineStart(), socketConnection.getLineLength());
             }
         } catch (IOException e) {
             log.warn("Client {} disconnected unexpectedly: {}", this.username, e.getMessage());
         } finally {
-            try {
-                if (gameSession != null) {
-                    //gameSession.getOtherPlayerInSession(this).setLoggedIn(false); // Set loggedIn to false before closing connection
-                    if (gameSession.getOtherPlayerInSession(this).isLoggedIn()){
-                        closeConnection(loggedIn);
+            onDisconnect();
+        }
+    }
+
+    /**
+     * Takes a line from the client's quota.
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @return 0 if the line may be handled now, otherwise the nanoseconds to wait before trying again
+     */
+    long acquireLine(long now) {
+        return quota != null ? quota.acquireLine(now) : 0;
+    }
+
+    /**
+     * Waits until the client's quota allows the line just read.
+     * The thread doesn't read meanwhile, so a client sending too fast is slowed down by its own socket buffers.
+     *
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    private void awaitLine() throws InterruptedIOException {
+        long wait = acquireLine(System.nanoTime());
+        if (wait == 0) {
+            return;
+        }
+        server.getMetrics().readThrottled();
+        try {
+            do {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } while ((wait = acquireLine(System.nanoTime())) > 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the line was throttled");
+        }
+    }
+
+    /**
+     * Processes one line received from the client.
+     * The line is decoded in place, so the transport may reuse the buffer as soon as this method returns.
+     *
+     * @param buffer the buffer holding the line
+     * @param offset the start of the line in the buffer
+     * @param length the length of the line without the line terminator
+     * @throws IOException If an I/O error occurs while handling the command
+     */
+    public void handleLine(byte[] buffer, int offset, int length) throws IOException {
+        lastActivity = System.nanoTime();
+        WireFormat format = connection.getFormat();
+        Command command = format.decode(parser, buffer, offset, length);
+        String owner = remoteSession;
+        if (owner != null) {
+            // Counted by the node running the session
+            server.getCluster().forwardLine(this, owner, command.toString());
+            return;
+        }
+        server.getMetrics().commandReceived(command.getType());
+        if (traced && ProtocolTrace.LOG.isDebugEnabled()) {
+            ProtocolTrace.LOG.debug("{} -> {}", this, command);
+        }
+
+        if (watched != null) {
+            if (command.getType() == Message.COMMAND.QUIT) {
+                closeConnection(false);
+            } else {
+                sendMessage(command.getType() == Message.COMMAND.PING ? Reply.PONG : Reply.FAILURE);
+            }
+            return;
+        }
+
+        if (!isLoggedIn()) {
+            if (command.isBinaryRequested() && !connection.supportsFormat(WireFormat.BINARY)) {
+                log.debug("{} can't switch to the binary format, {} refused", connection.getRemoteAddress(), command);
+                sendMessage(Reply.FAILURE);
+                return;
+            }
+            // Handle login or user-related commands
+            if (command.getType() == Message.COMMAND.USER) {
+                if (!command.isMalformed()) {
+                    if (command.isBinaryRequested()) {
+                        connection.setFormat(WireFormat.BINARY);
+                    }
+                    setUsername(command.getUsername());
+                    setLoggedIn(true);
+                    //log.info("User '{}' logged in successfully", command.getUsername());
+                    server.addWaitingClient(this);
+
+                } else {
+                    log.debug("Invalid USER command format: {}", command);
+                    sendMessage(Reply.FAILURE);
+                }
+            } else if (command.getType() == Message.COMMAND.WATCH && !command.isMalformed()) {
+                if (command.isBinaryRequested()) {
+                    connection.setFormat(WireFormat.BINARY);
+                }
+                if (!server.watch(this, command.getUsername())) {
+                    log.debug("No game of {} to watch", command.getUsername());
+                    if (command.isBinaryRequested()) {
+                        connection.setFormat(WireFormat.TEXT);
+                    }
+                    sendMessage(Reply.FAILURE);
+                }
+            } else if (command.getType() == Message.COMMAND.RESUME && !command.isMalformed()) {
+                GameSession session = server.takeParkedSession(command.getUsername(), command.getToken());
+                if (session != null) {
+                    if (command.isBinaryRequested()) {
+                        connection.setFormat(WireFormat.BINARY);
                     }
+                    setUsername(command.getUsername());
+                    setLoggedIn(true);
+                    setGameSession(session);
+                    session.reattach(this);
+                } else {
+                    log.debug("No session to resume for {}", command.getUsername());
+                    sendMessage(Reply.FAILURE);
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            } else {
+                log.debug("Client not logged in. Message: {} could not be processed", command);
+                sendMessage(Reply.FAILURE);
             }
+            return;
+        }
+
+        if (gameSession != null) {
+            gameSession.submit(message, command);
+        } else {
+            log.debug("Game session not yet started. Message: {} could not be processed", command);
+            sendMessage(Reply.FAILURE);
+        }
+    }
+
+    /**
+     * Called by the transport when the client went away without being closed by the server.
+     * Releases the username, or parks the client's game session for the client to resume, see {@link GameSession#playerLeft}.
+     */
+    public void onDisconnect() {
+        if (isClosing.get()) {
+            return;
+        }
+        try {
+            closeConnection(loggedIn);
+        } catch (IOException e) {
+            log.error("Error closing connection for client {}: {}", this.username, e.getMessage());
         }
     }
 
     /**
      * Sends a message to the client.
+     * The message is only logged if the client is sampled for the protocol trace and the trace is switched on.
      * @param message
      */
-    public void sendMessage(String message) {
-        out.println(message);
-        if (isLoggedIn()) {
-            log.info("Server sent message: {} to client: {}.", message, this.username);
-        } else {
-            log.info("Server sent message: {} to client: {}.", message, this);
+    public void sendMessage(Reply message) {
+        connection.send(message);
+        if (traced && ProtocolTrace.LOG.isDebugEnabled()) {
+            ProtocolTrace.LOG.debug("{} <- {}", this, message);
         }
     }
 
@@ -140,44 +338,35 @@ public class ClientHandler implements Runnable {
      * @throws IOException If an I/O error occurs while closing the connection
      */
     public void closeConnection(boolean LoggedIn) throws IOException {
-        if (isClosing) {
-            log.info("Connection for client {} is already closing", this.username);
+        if (!isClosing.compareAndSet(false, true)) {
+            log.debug("Connection for client {} is already closing", this.username);
             return; // Prevent recursive calls
         }
-        isClosing = true;
-        this.sendMessage("QUIT");
+        server.getMetrics().clientDisconnected();
+        if (quota != null) {
+            quota.release();
+        }
+        this.sendMessage(Reply.QUIT);
 
         try {
-            // Close input stream
-            if (in != null) {
-                try {
-                    in.close();
-                    log.debug("Closing InputStream for client {}", this.username);
-                } catch (IOException e) {
-                    log.error("Error closing input stream for client {}: {}", this.username, e.getMessage());
-                }
-            }
+            connection.close();
 
-            // Close output stream
-            if (out != null) {
-                out.close();
-                log.debug("Closing OutputStream for client {}", this.username);
+            GameSession spectated = watched;
+            if (spectated != null) {
+                spectated.removeSpectator(this);
             }
-
-            // Close socket
-            if (socket != null && !socket.isClosed()) {
-                try {
-                    socket.close();
-                    log.debug("Closing socket for client {}", this.username);
-                } catch (IOException e) {
-                    log.error("Error closing socket for client {}: {}", this.username, e.getMessage());
-                }
-            }
-
             if (LoggedIn){
-                // Notify server to remove client
-                server.removeActiveUser(this);
-                gameSession.getOtherPlayerInSession(this).sendMessage("WIN");
+                GameSession session = gameSession;
+                if (session != null) {
+                    // The session releases the username, unless it keeps it for the client to resume
+                    session.playerLeft(this);
+                } else {
+                    // Notify server to remove client
+                    server.removeActiveUser(this);
+                    if (remoteSession != null) {
+                        server.getCluster().forwardDisconnect(this, remoteSession);
+                    }
+                }
             }
 
 
@@ -190,4 +379,9 @@ public class ClientHandler implements Runnable {
     public Server getServer() {
         return server;
     }
-}
\ No newline at end of file
+
+    @Override
+    public String toString() {
+        return username != null ? username : connection.getRemoteAddress();
+    }
+}
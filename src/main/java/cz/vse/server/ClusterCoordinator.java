@@ -0,0 +1,85 @@
+package cz.vse.server;
+
+/**
+ * State shared by the nodes of a cluster: the registry of usernames, the matchmaking queue
+ * and the routes between a player's connection and the node running the player's game session.
+ * Players are identified by username and nodes by id only, so an implementation can live outside the JVM.
+ * {@link LocalClusterCoordinator} is the in-process reference implementation.
+ */
+public interface ClusterCoordinator {
+
+    /**
+     * Adds a node to the cluster. Pairs and routed messages are delivered to it from now on.
+     *
+     * @param node the node
+     */
+    void join(ClusterNode node);
+
+    /**
+     * Removes a node from the cluster together with its usernames and waiting players.
+     *
+     * @param node the node
+     */
+    void leave(ClusterNode node);
+
+    /**
+     * Claims a username for a player connected to a node.
+     *
+     * @param username the username
+     * @param nodeId   the node the player is connected to
+     * @return false if the username is already used anywhere in the cluster
+     */
+    boolean claimUsername(String username, String nodeId);
+
+    /**
+     * Releases a username claimed by the node. Also takes the player out of the matchmaking queue.
+     *
+     * @param username the username
+     * @param nodeId   the node that claimed the username, other nodes can't release it
+     */
+    void releaseUsername(String username, String nodeId);
+
+    /**
+     * Puts a player into the shared matchmaking queue.
+     * Once paired, the session is started by {@link ClusterNode#startSession(String, String, String)} on the node of the first player.
+     *
+     * @param username the username
+     * @param nodeId   the node the player is connected to
+     */
+    void enqueue(String username, String nodeId);
+
+    /**
+     * Routes a line received from a player to the node running the player's session.
+     *
+     * @param nodeId   the node running the session
+     * @param username the player
+     * @param line     the line without the line terminator
+     */
+    void sendLine(String nodeId, String username, String line);
+
+    /**
+     * Routes a message of a session to the node the player is connected to.
+     *
+     * @param nodeId   the node the player is connected to
+     * @param fromNode the node running the session
+     * @param username the player
+     * @param message  the message
+     */
+    void sendMessage(String nodeId, String fromNode, String username, String message);
+
+    /**
+     * Tells the node running the session that the player's connection is gone.
+     *
+     * @param nodeId   the node running the session
+     * @param username the player
+     */
+    void sendDisconnected(String nodeId, String username);
+
+    /**
+     * Tells the node the player is connected to that the session closed the player's connection.
+     *
+     * @param nodeId   the node the player is connected to
+     * @param username the player
+     */
+    void sendClose(String nodeId, String username);
+}
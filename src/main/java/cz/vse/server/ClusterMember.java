@@ -0,0 +1,172 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connects a server to a cluster. Usernames and the matchmaking queue are shared through the {@link ClusterCoordinator}.
+ * A session runs on the node of its first player; the second player, when connected to another node,
+ * is stood in for there by a ClientHandler on a {@link RemoteConnection}, and the node holding the real connection
+ * forwards the player's lines to the session and the session's messages back to the player.
+ */
+public class ClusterMember implements ClusterNode {
+    private final Server server;
+    private final ClusterCoordinator coordinator;
+    private final String nodeId;
+    private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>(); // Logged in clients connected to this node
+    private final Map<String, ClientHandler> proxies = new ConcurrentHashMap<>(); // Remote players in sessions on this node
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    public ClusterMember(Server server, ClusterCoordinator coordinator, String nodeId) {
+        this.server = server;
+        this.coordinator = coordinator;
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    void join() {
+        coordinator.join(this);
+    }
+
+    void leave() {
+        coordinator.leave(this);
+    }
+
+    /**
+     * Claims the client's username in the whole cluster.
+     *
+     * @param client the client that just logged in
+     * @return false if the username is already used on any node
+     */
+    boolean claim(ClientHandler client) {
+        if (!coordinator.claimUsername(client.getUsername(), nodeId)) {
+            return false;
+        }
+        clients.put(client.getUsername(), client);
+        return true;
+    }
+
+    /**
+     * Lets the connection a player resumed on hold the player's username.
+     *
+     * @param previous the client that held the username
+     * @param client   the client of the same player that replaces it
+     */
+    void transfer(ClientHandler previous, ClientHandler client) {
+        clients.replace(client.getUsername(), previous, client);
+    }
+
+    void enqueue(ClientHandler client) {
+        coordinator.enqueue(client.getUsername(), nodeId);
+    }
+
+    /**
+     * Forgets a client or a stand-in for a remote player.
+     * Only the node holding the real connection releases the username.
+     *
+     * @param client the client that is closing
+     */
+    void release(ClientHandler client) {
+        String username = client.getUsername();
+        if (proxies.remove(username, client)) {
+            return;
+        }
+        if (clients.remove(username, client)) {
+            coordinator.releaseUsername(username, nodeId);
+            log.debug("Released username {} in the cluster", username);
+        }
+    }
+
+    /**
+     * Forwards a line of a client whose session runs on another node.
+     *
+     * @param client the client
+     * @param owner  the node running the client's session
+     * @param line   the line in the text protocol, whatever format the client speaks
+     */
+    void forwardLine(ClientHandler client, String owner, String line) {
+        coordinator.sendLine(owner, client.getUsername(), line);
+    }
+
+    void forwardDisconnect(ClientHandler client, String owner) {
+        coordinator.sendDisconnected(owner, client.getUsername());
+    }
+
+    @Override
+    public void startSession(String player1, String player2Node, String player2) {
+        ClientHandler first = clients.get(player1);
+        ClientHandler second = nodeId.equals(player2Node) ? clients.get(player2) : null;
+        if (first == null) {
+            // The first player left while being paired, the second one waits for somebody else
+            coordinator.enqueue(player2, player2Node);
+            return;
+        }
+        if (second == null && nodeId.equals(player2Node)) {
+            coordinator.enqueue(player1, nodeId);
+            return;
+        }
+        if (second == null) {
+            second = new ClientHandler(new RemoteConnection(coordinator, nodeId, player2Node, player2), server);
+            second.setUsername(player2);
+            second.setLoggedIn(true);
+            proxies.put(player2, second);
+            log.debug("{} plays on node {} through {}", player2, nodeId, player2Node);
+        }
+        server.startGameSession(first, second);
+    }
+
+    @Override
+    public void receiveLine(String username, String line) {
+        ClientHandler proxy = proxies.get(username);
+        if (proxy == null) {
+            log.debug("Dropped a line of {}, who has no session on node {}", username, nodeId);
+            return;
+        }
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        try {
+            proxy.handleLine(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            log.error("Error handling a line of remote player {}: {}", username, e.getMessage());
+        }
+    }
+
+    @Override
+    public void receiveMessage(String fromNode, String username, String message) {
+        ClientHandler client = clients.get(username);
+        if (client == null) {
+            return;
+        }
+        // The first message of a session tells the client where its lines go from now on
+        client.setRemoteSession(fromNode);
+        client.sendMessage(Reply.valueOf(message));
+    }
+
+    @Override
+    public void remoteDisconnected(String username) {
+        ClientHandler proxy = proxies.get(username);
+        if (proxy != null) {
+            proxy.onDisconnect();
+        }
+    }
+
+    @Override
+    public void closeClient(String username) {
+        ClientHandler client = clients.get(username);
+        if (client != null) {
+            try {
+                client.closeConnection(true);
+            } catch (IOException e) {
+                log.error("Error closing connection for client {}: {}", username, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package cz.vse.server;
+
+/**
+ * A server as seen by the {@link ClusterCoordinator}: the receiving end of pairs and routed messages.
+ */
+public interface ClusterNode {
+
+    String getNodeId();
+
+    /**
+     * Starts the session of a pair on this node, which is the node of the first player.
+     *
+     * @param player1     the first player, connected to this node
+     * @param player2Node the node the second player is connected to
+     * @param player2     the second player
+     */
+    void startSession(String player1, String player2Node, String player2);
+
+    /**
+     * Processes a line of a player connected to another node, in the player's session on this node.
+     *
+     * @param username the player
+     * @param line     the line
+     */
+    void receiveLine(String username, String line);
+
+    /**
+     * Sends a message of a session on another node to a player connected to this node.
+     *
+     * @param fromNode the node running the session
+     * @param username the player
+     * @param message  the message
+     */
+    void receiveMessage(String fromNode, String username, String message);
+
+    /**
+     * The connection of a player in a session on this node is gone.
+     *
+     * @param username the player
+     */
+    void remoteDisconnected(String username);
+
+    /**
+     * The session on another node closed the connection of a player connected to this node.
+     *
+     * @param username the player
+     */
+    void closeClient(String username);
+}
@@ -0,0 +1,143 @@
+package cz.vse.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A decoded client command.
+ * One instance is reused for every line of a connection, see {@link CommandParser},
+ * so it is only valid until the next line is parsed.
+ */
+public class Command {
+    Message.COMMAND type;
+    boolean malformed;
+    int x;
+    int y;
+    int rotation;
+    ShipShape shape;
+    String username;
+    long token;
+    boolean binaryRequested;
+    private boolean binary; // Decoded from a binary frame
+
+    // The raw line, kept only to print it in log messages
+    private byte[] line;
+    private int offset;
+    private int length;
+
+    void reset(byte[] line, int offset, int length) {
+        this.line = line;
+        this.offset = offset;
+        this.length = length;
+        type = null;
+        malformed = false;
+        x = 0;
+        y = 0;
+        rotation = 0;
+        shape = null;
+        username = null;
+        token = 0;
+        binaryRequested = false;
+        binary = false;
+    }
+
+    void markBinary() {
+        binary = true;
+    }
+
+    /**
+     * Copies the command, including the raw line, so it stays valid after the parser moves on.
+     *
+     * @return an independent copy of this command
+     */
+    public Command copy() {
+        Command copy = new Command();
+        copy.reset(line == null ? null : Arrays.copyOfRange(line, offset, offset + length), 0, length);
+        copy.type = type;
+        copy.malformed = malformed;
+        copy.x = x;
+        copy.y = y;
+        copy.rotation = rotation;
+        copy.shape = shape;
+        copy.username = username;
+        copy.token = token;
+        copy.binaryRequested = binaryRequested;
+        copy.binary = binary;
+        return copy;
+    }
+
+    /**
+     * @return the command or null if the command is unknown
+     */
+    public Message.COMMAND getType() {
+        return type;
+    }
+
+    /**
+     * @return true if the command is known but its arguments are missing or invalid
+     */
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+
+    public ShipShape getShape() {
+        return shape;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return the resume token of the RESUME command
+     */
+    public long getToken() {
+        return token;
+    }
+
+    /**
+     * @return true if the client asked for the binary protocol when logging in
+     */
+    public boolean isBinaryRequested() {
+        return binaryRequested;
+    }
+
+    /**
+     * Decodes the raw line. Only called when the command is actually logged or forwarded to another node.
+     *
+     * @return the line as received from the client, or the equivalent line of the text protocol for a binary frame
+     */
+    @Override
+    public String toString() {
+        if (binary) {
+            return toTextLine();
+        }
+        return line == null ? "" : new String(line, offset, length, StandardCharsets.UTF_8);
+    }
+
+    private String toTextLine() {
+        if (type == null) {
+            return "";
+        }
+        switch (type) {
+            case BOMB:
+                return type + " " + x + " " + y;
+            case PLACE:
+                return type + " " + x + " " + y + " " + shape + " " + rotation;
+            default:
+                return type.name();
+        }
+    }
+}
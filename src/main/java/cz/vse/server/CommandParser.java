@@ -0,0 +1,264 @@
+package cz.vse.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes protocol lines straight from the read buffer of a connection.
+ * Tokens are compared byte by byte against the known command and shape names and numbers are parsed in place,
+ * so decoding a command creates no garbage and unknown input never throws.
+ * Only the usernames of the USER, RESUME and WATCH commands are turned into Strings.
+ * Frames of the binary protocol are decoded by {@link #parseBinary(byte[], int, int)} into the same command.
+ * Every connection owns one parser, which reuses a single {@link Command}.
+ */
+public class CommandParser {
+    private static final Message.COMMAND[] COMMANDS = Message.COMMAND.values();
+    private static final byte[][] COMMAND_NAMES = names(COMMANDS);
+    private static final ShipShape[] SHAPES = ShipShape.values();
+    private static final byte[][] SHAPE_NAMES = names(SHAPES);
+    private static final byte[] BINARY_OPTION = " BINARY".getBytes(StandardCharsets.US_ASCII);
+
+    private final Command command = new Command();
+    private byte[] buffer;
+    private int position;
+    private int end;
+
+    private static byte[][] names(Enum<?>[] values) {
+        byte[][] names = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            names[i] = values[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+        return names;
+    }
+
+    /**
+     * Parses one line.
+     *
+     * @param buffer the buffer holding the line
+     * @param offset the start of the line in the buffer
+     * @param length the length of the line without the line terminator
+     * @return the parsed command, valid until the next call
+     */
+    public Command parse(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.end = offset + length;
+        command.reset(buffer, offset, length);
+
+        int tokenStart = nextToken();
+        int index = match(COMMAND_NAMES, tokenStart, position);
+        if (index < 0) {
+            return command;
+        }
+        command.type = COMMANDS[index];
+
+        switch (command.type) {
+            case USER:
+            case WATCH:
+                skipSpaces();
+                if (endsWith(BINARY_OPTION)) {
+                    command.binaryRequested = true;
+                    end -= BINARY_OPTION.length;
+                }
+                if (position >= end) {
+                    command.malformed = true;
+                } else {
+                    command.username = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+                }
+                break;
+            case RESUME:
+                skipSpaces();
+                if (endsWith(BINARY_OPTION)) {
+                    command.binaryRequested = true;
+                    end -= BINARY_OPTION.length;
+                }
+                // The username may contain spaces, the token is the last word
+                int tokenEnd = end;
+                while (end > position && buffer[end - 1] != ' ') {
+                    end--;
+                }
+                command.token = hexNumber(end, tokenEnd);
+                while (end > position && buffer[end - 1] == ' ') {
+                    end--;
+                }
+                if (position >= end) {
+                    command.malformed = true;
+                } else {
+                    command.username = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+                }
+                break;
+            case BOMB:
+                command.x = nextNumber();
+                command.y = nextNumber();
+                expectEnd();
+                break;
+            case PLACE:
+                command.x = nextNumber();
+                command.y = nextNumber();
+                int shape = match(SHAPE_NAMES, nextToken(), position);
+                if (shape < 0) {
+                    command.malformed = true;
+                } else {
+                    command.shape = SHAPES[shape];
+                }
+                command.rotation = nextNumber();
+                expectEnd();
+                break;
+            default:
+                break;
+        }
+        return command;
+    }
+
+    /**
+     * Parses one frame of the binary protocol, the length prefix already stripped.
+     * The first byte is the opcode, the arguments follow packed as described in {@link WireFormat#BINARY}.
+     *
+     * @param buffer the buffer holding the frame
+     * @param offset the start of the opcode in the buffer
+     * @param length the length of the frame without the length prefix
+     * @return the parsed command, valid until the next call
+     */
+    public Command parseBinary(byte[] buffer, int offset, int length) {
+        command.reset(buffer, offset, length);
+        command.markBinary();
+        if (length == 0) {
+            return command;
+        }
+        command.type = Message.COMMAND.byCode(buffer[offset] & 0xFF);
+        if (command.type == null) {
+            return command;
+        }
+
+        switch (command.type) {
+            case BOMB:
+                if (length != 2) {
+                    command.malformed = true;
+                    break;
+                }
+                command.x = (buffer[offset + 1] >> 4) & 0xF;
+                command.y = buffer[offset + 1] & 0xF;
+                break;
+            case PLACE:
+                if (length != 3) {
+                    command.malformed = true;
+                    break;
+                }
+                command.x = (buffer[offset + 1] >> 4) & 0xF;
+                command.y = buffer[offset + 1] & 0xF;
+                int shape = (buffer[offset + 2] >> 4) & 0xF;
+                if (shape >= SHAPES.length) {
+                    command.malformed = true;
+                } else {
+                    command.shape = SHAPES[shape];
+                }
+                command.rotation = buffer[offset + 2] & 0xF;
+                break;
+            case USER:
+            case RESUME:
+            case WATCH:
+                command.malformed = true; // Logging in is only possible with the text protocol
+                break;
+            default:
+                break;
+        }
+        return command;
+    }
+
+    private boolean endsWith(byte[] suffix) {
+        int start = end - suffix.length;
+        if (start < position) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length; i++) {
+            if (buffer[start + i] != suffix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipSpaces() {
+        while (position < end && buffer[position] == ' ') {
+            position++;
+        }
+    }
+
+    /**
+     * Moves past the next token.
+     *
+     * @return the start of the token, the end is the current position
+     */
+    private int nextToken() {
+        skipSpaces();
+        int start = position;
+        while (position < end && buffer[position] != ' ') {
+            position++;
+        }
+        return start;
+    }
+
+    private int nextNumber() {
+        int start = nextToken();
+        int i = start;
+        boolean negative = i < position && buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == position || position - i > 9) {
+            command.malformed = true;
+            return 0;
+        }
+        int value = 0;
+        for (; i < position; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                command.malformed = true;
+                return 0;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private long hexNumber(int start, int stop) {
+        if (stop - start != 16) {
+            command.malformed = true;
+            return 0;
+        }
+        long value = 0;
+        for (int i = start; i < stop; i++) {
+            int digit = Character.digit(buffer[i], 16);
+            if (digit < 0) {
+                command.malformed = true;
+                return 0;
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    private void expectEnd() {
+        skipSpaces();
+        if (position != end) {
+            command.malformed = true;
+        }
+    }
+
+    private int match(byte[][] names, int start, int stop) {
+        int length = stop - start;
+        for (int i = 0; i < names.length; i++) {
+            byte[] name = names[i];
+            if (name.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && name[j] == buffer[start + j]) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,64 @@
+package cz.vse.server;
+
+/**
+ * Transport side of a client connection.
+ * A ClientHandler talks to its client only through this interface,
+ * so the game logic doesn't care whether the client is served by a blocking socket or a selector.
+ */
+public interface Connection {
+
+    /**
+     * Sends one message to the client, encoded in the connection's {@link WireFormat}.
+     *
+     * @param message the message to send
+     */
+    void send(Reply message);
+
+    /**
+     * @return the format commands are received and messages sent in
+     */
+    default WireFormat getFormat() {
+        return WireFormat.TEXT;
+    }
+
+    /**
+     * @param format a format a client asked for
+     * @return true if the connection can switch to the format, a connection keeps its one format unless it says otherwise
+     */
+    default boolean supportsFormat(WireFormat format) {
+        return format == getFormat();
+    }
+
+    /**
+     * Switches the format of the connection, affecting the frames received and the messages sent from now on.
+     * Only called with a format the connection {@link #supportsFormat(WireFormat) supports},
+     * so a connection with one format has nothing to switch.
+     *
+     * @param format the new format
+     */
+    default void setFormat(WireFormat format) {
+        // Already in the format
+    }
+
+    /**
+     * Lowers the number of messages that may wait for the client and disconnects the client when they are exceeded,
+     * whatever the configured overflow policy. Used for spectators, who must not hold up anything.
+     *
+     * @param highWaterMark the new high-water mark of the outbound queue
+     */
+    default void limitOutbound(int highWaterMark) {
+        // Nothing is queued
+    }
+
+    /**
+     * Closes the connection. Lines sent before this call are still delivered if possible.
+     */
+    void close();
+
+    boolean isClosed();
+
+    /**
+     * @return the remote address of the client, used for logging
+     */
+    String getRemoteAddress();
+}
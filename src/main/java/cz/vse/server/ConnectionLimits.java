@@ -0,0 +1,135 @@
+package cz.vse.server;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits of client connections, so a single client or address can't take the server from the honest players.
+ * Connections are counted when accepted, in total and per remote address, and the ones over the limits are closed at once.
+ * Every admitted connection gets a {@link Quota} of lines it may send: a {@link TokenBucket} of its own
+ * and one shared by all connections from its address. A client over its quota isn't disconnected,
+ * its lines are just not read until the quota allows: they wait in the socket buffers and the client's writes stall once they are full.
+ */
+public class ConnectionLimits {
+    private final int maxConnections;
+    private final int maxPerAddress;
+    private final double linesPerSecond;
+    private final int lineBurst;
+    private final double addressLinesPerSecond;
+    private final int addressLineBurst;
+    private final ServerMetrics metrics;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Map<InetAddress, Address> addresses = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxConnections        the maximum number of connections, 0 for no limit
+     * @param maxPerAddress         the maximum number of connections from one address, 0 for no limit
+     * @param linesPerSecond        the steady rate of lines of a connection, 0 for no limit
+     * @param lineBurst             the number of lines a connection may send at once
+     * @param addressLinesPerSecond the steady rate of lines of all connections from one address, 0 for no limit
+     * @param addressLineBurst      the number of lines the connections from one address may send at once
+     * @param metrics               the metrics rejected connections and throttled lines are counted in
+     */
+    public ConnectionLimits(int maxConnections, int maxPerAddress, double linesPerSecond, int lineBurst,
+                            double addressLinesPerSecond, int addressLineBurst, ServerMetrics metrics) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+        this.linesPerSecond = linesPerSecond;
+        this.lineBurst = lineBurst;
+        this.addressLinesPerSecond = addressLinesPerSecond;
+        this.addressLineBurst = addressLineBurst;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Connections from one address, guarded by the map's compute methods.
+     */
+    private final class Address {
+        private final TokenBucket lines = addressLinesPerSecond > 0 ? new TokenBucket(addressLinesPerSecond, addressLineBurst) : null;
+        private int connections;
+    }
+
+    /**
+     * Counts a connection just accepted.
+     *
+     * @param address the remote address of the connection
+     * @return the quota of the connection, null if it is over a limit and must be closed
+     */
+    public Quota admit(InetAddress address) {
+        if (connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            connections.decrementAndGet();
+            metrics.connectionOverServerLimit();
+            return null;
+        }
+        boolean[] full = new boolean[1];
+        Address entry = addresses.compute(address, (key, current) -> {
+            Address counted = current != null ? current : new Address();
+            if (maxPerAddress > 0 && counted.connections >= maxPerAddress) {
+                full[0] = true;
+            } else {
+                counted.connections++;
+            }
+            return counted.connections > 0 ? counted : null;
+        });
+        if (full[0]) {
+            connections.decrementAndGet();
+            metrics.connectionOverAddressLimit();
+            return null;
+        }
+        return new Quota(address, entry);
+    }
+
+    /**
+     * @return the number of connections admitted and not closed yet
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * The lines a connection may send, and its place in the connection counts until it closes.
+     */
+    public final class Quota {
+        private final InetAddress address;
+        private final Address limits;
+        private final TokenBucket lines = linesPerSecond > 0 ? new TokenBucket(linesPerSecond, lineBurst) : null;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Quota(InetAddress address, Address limits) {
+            this.address = address;
+            this.limits = limits;
+        }
+
+        /**
+         * Takes a line from the quota of the connection and of its address.
+         *
+         * @param now the current {@link System#nanoTime()}
+         * @return 0 if the line may be handled now, otherwise the nanoseconds to wait before trying again
+         */
+        public long acquireLine(long now) {
+            long wait = lines != null ? lines.tryAcquire(now) : 0;
+            if (wait > 0 || limits.lines == null) {
+                return wait;
+            }
+            wait = limits.lines.tryAcquire(now);
+            if (wait > 0 && lines != null) {
+                lines.refund();
+            }
+            return wait;
+        }
+
+        /**
+         * Gives the connection's place back when it closes, once.
+         */
+        public void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            connections.decrementAndGet();
+            addresses.computeIfPresent(address, (key, current) -> --current.connections > 0 ? current : null);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package cz.vse.server;
+
+/**
+ * Connection of a player of a session recovered from the journal who hasn't resumed yet.
+ * Everything sent to it is dropped, the session sends the player what matters once the player is back.
+ */
+public class DetachedConnection implements Connection {
+    private volatile boolean closed = false;
+
+    @Override
+    public void send(Reply message) {
+        // Nobody to send it to
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "detached";
+    }
+}
@@ -0,0 +1,19 @@
+package cz.vse.server;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Pairs players in the order they arrived, the first with the second, the third with the fourth and so on.
+ */
+public class FifoPairingStrategy implements PairingStrategy {
+
+    @Override
+    public void pair(List<WaitingPlayer> waiting, BiConsumer<WaitingPlayer, WaitingPlayer> onPair) {
+        int paired = waiting.size() & ~1;
+        for (int i = 0; i < paired; i += 2) {
+            onPair.accept(waiting.get(i), waiting.get(i + 1));
+        }
+        waiting.subList(0, paired).clear();
+    }
+}
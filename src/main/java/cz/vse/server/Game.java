@@ -3,218 +3,180 @@ package cz.vse.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.*;
-
 /**
  * This class represents the game logic for a two-player game.
+ * The boards of both players are kept as bitboards, see {@link Board}, on the heap or in a slot of a {@link BoardSlab}.
+ * Games are recycled by the {@link GamePool} when their session ends.
  */
 public class Game {
-    private final List<List<Integer>> listPlayerOne = new ArrayList<>();
-    private final List<List<Integer>> listPlayerTwo = new ArrayList<>();
-    private final GameSession gameSession;
+    private Board boardPlayerOne;
+    private Board boardPlayerTwo;
+    private HeapBoard heapPlayerOne; // Created when the game first keeps its boards on the heap
+    private HeapBoard heapPlayerTwo;
+    private SlabBoard slabPlayerOne; // Created when the game first keeps its boards in the slab
+    private SlabBoard slabPlayerTwo;
+    private int slot = -1;
+    private GameSession gameSession;
     private static final Logger log = LoggerFactory.getLogger(Game.class);
 
     public Game(GameSession gs) {
-        this.gameSession = gs;
+        this(gs, null, -1);
     }
 
     /**
-     * Initializes the game board for both players.
-     * Each player has a 10x10 grid represented as a list of lists.
-     * Each cell is initialized to 1, indicating that it is empty.
+     * @param gs   the session
+     * @param slab the slab to keep the boards in, may be null if the slot is -1
+     * @param slot the slot of the slab, -1 to keep the boards on the heap
      */
-    public void initializeGame() {
-        for (int i = 0; i < 10; i++) {
-            listPlayerOne.add(new ArrayList<>(Arrays.asList(1,1,1,1,1,1,1,1,1,1)));
-            listPlayerTwo.add(new ArrayList<>(Arrays.asList(1,1,1,1,1,1,1,1,1,1)));
-        }
+    Game(GameSession gs, BoardSlab slab, int slot) {
+        this.gameSession = gs;
+        store(slab, slot);
     }
 
     /**
-     * This method is called when a player bombs another player's ship.
-     * It checks if the coordinates are valid and if the bomb hits or misses.
-     * If the bomb hits, it updates the grid and checks for a win condition.
-     * @param x x coordinate
-     * @param y y coordinate
-     * @return a string indicating the result of the bombing (HIT or MISS)
+     * Chooses where the boards live from now on. Nothing is copied, {@link #initializeGame()} must follow.
+     *
+     * @param slab the slab to keep the boards in, may be null if the slot is -1
+     * @param slot the slot of the slab, -1 to keep the boards on the heap
      */
-    public String bomb(int x, int y) {
-        if ((x-1 < 0 || x-1 > 9) || (y-1 < 0 || y-1 > 9)) {
-            log.error("Invalid coordinates for bomb placement: {}, {}", x, y);
-            return "FAILURE";
-        } else {
-            if (gameSession.isPlayer1Turn())
-                if (listPlayerTwo.get(x-1).get(y-1) == 2){
-                    log.warn("Cell already bombed: {}, {}", x, y);
-                    return "FAILURE";
-                } else if (listPlayerTwo.get(x-1).get(y-1) == 0) {
-                    listPlayerTwo.get(x-1).set(y-1, -1);
-                    //checkForWin();
-                    return "HIT" + " " + x + " " + y;
-                } else {
-                    listPlayerTwo.get(x-1).set(y-1, 2);
-                    return "MISS" + " " + x + " " + y;
-                }
-            else {
-                if (listPlayerOne.get(x-1).get(y-1) == 2){
-                    log.warn("Cell already bombed: {}, {}", x, y);
-                    return "FAILURE";
-                } else if (listPlayerOne.get(x-1).get(y-1) == 0) {
-                    listPlayerOne.get(x-1).set(y-1, -1);
-                    //checkForWin();
-                    return "HIT" + " " + x + " " + y;
-                } else {
-                    listPlayerOne.get(x-1).set(y-1, 2);
-                    return "MISS" + " " + x + " " + y;
-                }
+    void store(BoardSlab slab, int slot) {
+        this.slot = slot;
+        if (slot < 0) {
+            if (heapPlayerOne == null) {
+                heapPlayerOne = new HeapBoard();
+                heapPlayerTwo = new HeapBoard();
             }
+            boardPlayerOne = heapPlayerOne;
+            boardPlayerTwo = heapPlayerTwo;
+            return;
         }
+        if (slabPlayerOne == null) {
+            slabPlayerOne = new SlabBoard(slab.buffer(), BoardSlab.offset(slot, true));
+            slabPlayerTwo = new SlabBoard(slab.buffer(), BoardSlab.offset(slot, false));
+        } else {
+            slabPlayerOne.bind(BoardSlab.offset(slot, true));
+            slabPlayerTwo.bind(BoardSlab.offset(slot, false));
+        }
+        boardPlayerOne = slabPlayerOne;
+        boardPlayerTwo = slabPlayerTwo;
     }
 
     /**
-     * Rotates the shape of the ship based on the rotation parameter.
-     * The rotation can be 0 (no rotation), 1 (90 degrees clockwise), 2 (180 degrees), 3 (270 degrees clockwise).
-     * @param shape the shape of the ship represented as a 2D array
-     * @param rotation the rotation parameter
-     * @return the rotated shape of the ship
+     * @return the slot of the slab holding the boards, -1 if they are on the heap
      */
-    private int[][] rotateShape(int[][] shape, int rotation) {
-        int rows = shape.length;
-        int cols = shape[0].length;
-        int[][] rotatedShape;
-
-        if (rotation == 1) { // 90 degrees clockwise
-            rotatedShape = new int[cols][rows];
-            for (int i = 0; i < rows; i++) {
-                for (int j = 0; j < cols; j++) {
-                    rotatedShape[j][rows - 1 - i] = shape[i][j];
-                }
-            }
-        } else {
-            rotatedShape = shape;
-        }
-        return rotatedShape;
+    int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Hands the game over to another session, when recycled by the {@link GamePool}.
+     *
+     * @param session the session, null while the game is idle in the pool
+     */
+    void attach(GameSession session) {
+        this.gameSession = session;
     }
 
     /**
-     * Checks if the ship can be placed at the specified coordinates.
-     * It checks if the coordinates are within bounds and if the adjacent cells are occupied.
+     * Initializes the game board for both players.
+     * Each player has an empty 10x10 board with no ships, hits or misses.
+     */
+    public void initializeGame() {
+        boardPlayerOne.clear();
+        boardPlayerTwo.clear();
+    }
+
+    /**
+     * This method is called when a player bombs another player's ship.
+     * It checks if the coordinates are valid and if the bomb hits or misses.
+     * The result is recorded on the opponent's board; bombing a cell that was already hit or missed fails.
      * @param x x coordinate
      * @param y y coordinate
-     * @param playerMap the grid of the player
-     * @return true if the ship can be placed, false otherwise
+     * @return the message with the result of the bombing (HIT, SUNK or MISS), or FAILURE
      */
-    private boolean isAdjacentCellOccupied(List<List<Integer>> playerMap, int x, int y) {
-        int[] dx = {-1, -1, -1, 0, 0, 1, 1, 1};
-        int[] dy = {-1, 0, 1, -1, 1, -1, 0, 1};
-
-        for (int i = 0; i < dx.length; i++) {
-            int newX = x + dx[i];
-            int newY = y + dy[i];
-
-            if (newX >= 0 && newX < 10 && newY >= 0 && newY < 10) {
-                if (playerMap.get(newX).get(newY) == 0) { // Adjacent cell occupied
-                    return true;
-                }
-            }
+    public Reply bomb(int x, int y) {
+        if ((x-1 < 0 || x-1 > 9) || (y-1 < 0 || y-1 > 9)) {
+            log.debug("Invalid coordinates for bomb placement: {}, {}", x, y);
+            return Reply.FAILURE;
+        }
+        Board target = gameSession.isPlayer1Turn() ? boardPlayerTwo : boardPlayerOne;
+        switch (target.bomb(Board.cell(x-1, y-1))) {
+            case Board.HIT:
+                return Reply.hit(x, y);
+            case Board.SUNK:
+                return Reply.sunk(x, y, target.shapeAt(Board.cell(x-1, y-1)));
+            case Board.MISS:
+                return Reply.miss(x, y);
+            default:
+                log.debug("Cell already bombed: {}, {}", x, y);
+                return Reply.FAILURE;
         }
-        return false;
     }
 
     /**
      * Places the ship on the grid for the specified player.
-     * It checks if the coordinates are valid and if the ship can be placed without overlaps.
+     * It checks if the coordinates are valid and if the ship can be placed without overlaps or touching another ship.
+     * The masks of the ship and its surroundings come from the {@link PlacementTable}, so nothing is allocated here.
      * @param x x coordinate
      * @param y y coordinate
-     * @param shape the shape of the ship represented as a 2D array
-     * @param rotation the rotation parameter
+     * @param shape the shape of the ship
+     * @param rotation the rotation parameter, see {@link ShipShape#getShape(int)}
      * @param sender the player who is placing the ship
-     * @return a string indicating the result of the placement (success or failure)
+     * @return the message with the result of the placement (SUCCESS or FAILURE)
      */
-    public String place(int x, int y, int[][] shape, int rotation, ClientHandler sender) {
-
-        int[][] rotatedShape = rotateShape(shape, rotation);
+    public Reply place(int x, int y, ShipShape shape, int rotation, ClientHandler sender) {
         x = x - 1; // Adjust for 0-based indexing, client uses 1-based indexing
         y = y - 1; // Adjust for 0-based indexing, client uses 1-based indexing
 
-        List<List<Integer>> playerMap = sender == gameSession.getPlayer1() ? listPlayerOne : listPlayerTwo;
-
-        // Validate coordinates
-        for (int i = 0; i < rotatedShape.length; i++) {
-            for (int j = 0; j < rotatedShape[i].length; j++) {
-                if (rotatedShape[i][j] == 1) { // Part of the ship
-                    int newX = x + i;
-                    int newY = y + j;
-
-                    // Check boundaries
-                    if (newX < 0 || newX >= 10 || newY < 0 || newY >= 10) {
-                        log.warn("Invalid placement: Ship part out of bounds at {}, {}", newX, newY);
-                        return "FAILURE";
-                    }
-
-                    // Check for overlaps
-                    if (playerMap.get(newX).get(newY) != 1) {
-                        log.warn("Invalid placement: Overlap detected at {}, {}", newX, newY);
-                        return "FAILURE";
-                    }
-
-                    // Check for adjacency
-                    if (isAdjacentCellOccupied(playerMap, newX, newY)) {
-                        log.warn("Invalid placement: Adjacent ship detected at {}, {}", newX, newY);
-                        return "FAILURE";
-                    }
-                }
-            }
-        }
+        Board board = sender == gameSession.getPlayer1() ? boardPlayerOne : boardPlayerTwo;
 
-        // Place the ship
-        for (int i = 0; i < rotatedShape.length; i++) {
-            for (int j = 0; j < rotatedShape[i].length; j++) {
-                if (rotatedShape[i][j] == 1) {
-                    playerMap.get(x + i).set(y + j, 0);
-                }
-            }
+        int placement = PlacementTable.lookup(shape, rotation, x, y);
+        if (placement < 0) {
+            log.debug("Invalid placement: {} with rotation {} out of bounds at {}, {}", shape, rotation, x, y);
+            return Reply.FAILURE;
+        }
+        if (board.overlaps(placement)) {
+            log.debug("Invalid placement: Overlap detected for {} at {}, {}", shape, x, y);
+            return Reply.FAILURE;
+        }
+        if (board.touches(placement)) {
+            log.debug("Invalid placement: Adjacent ship detected for {} at {}, {}", shape, x, y);
+            return Reply.FAILURE;
         }
 
-        log.info("Ship placed successfully at {}, {} with rotation {}", x, y, rotation);
-        return "SUCCESS";
+        board.placeShip(placement);
+        log.debug("Ship placed successfully at {}, {} with rotation {}", x, y, rotation);
+        return Reply.SUCCESS;
     }
 
     /**
      * Checks if all ships of the opponent are sunk.
      * If so, it sends a win message to the current player and a loss message to the opponent.
      * This method is called after each bombing action.
-     * It checks the grid of both players to determine if any ship parts are left.
-     * If all ship parts are sunk, it sends a win message to the current player and a loss message to the opponent.
+     * It reads {@link Board#allShipsSunk()}, the count of unhit ship cells each board keeps.
+     *
+     * @return true if the game is over
      */
-    public void checkForWin() {
+    public boolean checkForWin() {
         // Check if all ships of the opponent are sunk
-        boolean player2AllSunk = true;
-        for (List<Integer> row : listPlayerTwo) {
-            for (Integer cell : row) {
-                if (cell == 0) { // Ship part not sunk
-                    player2AllSunk = false;
-                    break;
-                }
-            }
-        }
-
-        boolean player1AllSunk = true;
-        for (List<Integer> row : listPlayerOne) {
-            for (Integer cell : row) {
-                if (cell == 0) { // Ship part not sunk
-                    player1AllSunk = false;
-                    break;
-                }
-            }
-        }
+        boolean player2AllSunk = boardPlayerTwo.allShipsSunk();
+        boolean player1AllSunk = boardPlayerOne.allShipsSunk();
 
         if (player2AllSunk) {
-            gameSession.getPlayer1().sendMessage("WIN");
-            gameSession.getPlayer2().sendMessage("LOST");
+            gameSession.getPlayer1().sendMessage(Reply.WIN);
+            gameSession.getPlayer2().sendMessage(Reply.LOST);
         } else if (player1AllSunk) {
-            gameSession.getPlayer1().sendMessage("LOST");
-            gameSession.getPlayer2().sendMessage("WIN");
+            gameSession.getPlayer1().sendMessage(Reply.LOST);
+            gameSession.getPlayer2().sendMessage(Reply.WIN);
         }
+        return player1AllSunk || player2AllSunk;
+    }
+
+    /**
+     * @param player1 true for the board of the first player, false for the second one
+     * @return the board of the player
+     */
+    Board getBoard(boolean player1) {
+        return player1 ? boardPlayerOne : boardPlayerTwo;
     }
 }
@@ -0,0 +1,487 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only journal of the events of all game sessions, kept in memory-mapped segment files.
+ * A record is {@code [type][payload length: 2][session id: 4][payload]}, a shot takes 9 bytes.
+ * <p>
+ * Appending copies a few bytes into the mapped segment under a short lock, so the journal survives a crash of the JVM
+ * as soon as the record is written. The sync thread forces the pages to the disk in batches every few milliseconds
+ * (group commit), which protects against a crash of the machine without an fsync per move on the latency path.
+ * The type byte of a record is written last, so a record torn by a crash reads as the end of the journal.
+ * <p>
+ * A session restored from a {@link ServerSnapshot} starts with a restore record instead of a start record,
+ * {@code [state length: 2][state]} followed by the payload of a start record, so it is replayed from that state.
+ * <p>
+ * A segment is deleted once every session with events in it has ended.
+ * On startup, {@link #open()} reads all segments and returns the sessions that didn't end, to be replayed.
+ */
+public class GameJournal {
+    static final byte START = 1;
+    static final byte PLACE = 2;
+    static final byte BOMB = 3;
+    static final byte TURN = 4;
+    static final byte END = 5;
+    static final byte RESTORE = 6;
+    private static final int HEADER = 7;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long syncNanos;
+    private final ServerMetrics metrics;
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private final Map<Integer, Integer> liveSessions = new HashMap<>(); // Session id to the segment of its start, guarded by this
+    private final List<Integer> segments = new ArrayList<>(); // Indexes of the segments on disk, guarded by this
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private int nextSessionId = 1;
+    private int firstSessionId = 1; // The first id taken in this run, the previous runs took those below
+    private boolean dirty;
+    private Thread syncer;
+    private volatile boolean running;
+
+    /**
+     * Events of a session that didn't end, read from the journal.
+     * Every event is packed into an int: type, player, then two argument bytes, see {@link GameSession#replay(int)}.
+     */
+    public static final class SessionLog {
+        private final int id;
+        private final String player1;
+        private final String player2;
+        private final long token1;
+        private final long token2;
+        private int[] events = new int[64];
+        private int count;
+        private boolean ended;
+        private byte[] state; // Null unless restored from a snapshot
+
+        private SessionLog(int id, String player1, String player2, long token1, long token2) {
+            this.id = id;
+            this.player1 = player1;
+            this.player2 = player2;
+            this.token1 = token1;
+            this.token2 = token2;
+        }
+
+        private void add(int event) {
+            if (count == events.length) {
+                events = Arrays.copyOf(events, count * 2);
+            }
+            events[count++] = event;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getPlayer1() {
+            return player1;
+        }
+
+        public String getPlayer2() {
+            return player2;
+        }
+
+        /**
+         * @return the resume token of the first player
+         */
+        public long getToken1() {
+            return token1;
+        }
+
+        public long getToken2() {
+            return token2;
+        }
+
+        /**
+         * @return the snapshot state the session was restored from, for {@link GameSession#restore(ByteBuffer)}, null if it started empty
+         */
+        public ByteBuffer getState() {
+            return state != null ? ByteBuffer.wrap(state) : null;
+        }
+
+        public int getEventCount() {
+            return count;
+        }
+
+        public int getEvent(int index) {
+            return events[index];
+        }
+    }
+
+    public GameJournal(Path directory, int segmentBytes, int syncMillis, ServerMetrics metrics) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reads the journal left by the previous run, opens a new segment for appending and starts the sync thread.
+     *
+     * @return the sessions that didn't end, in the order they started
+     * @throws IOException If the journal cannot be read or the new segment cannot be created
+     */
+    public synchronized List<SessionLog> open() throws IOException {
+        Files.createDirectories(directory);
+        List<Integer> existing;
+        try (Stream<Path> files = Files.list(directory)) {
+            existing = files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        Map<Integer, SessionLog> sessions = new LinkedHashMap<>();
+        for (int index : existing) {
+            read(index, sessions);
+            segments.add(index);
+            segmentIndex = index;
+        }
+        List<SessionLog> unfinished = new ArrayList<>();
+        for (SessionLog session : sessions.values()) {
+            nextSessionId = Math.max(nextSessionId, session.id + 1);
+            if (!session.ended) {
+                unfinished.add(session);
+            }
+        }
+        firstSessionId = nextSessionId;
+
+        openSegment(existing.isEmpty() ? 0 : segmentIndex + 1);
+        deleteObsoleteSegments();
+        running = true;
+        syncer = new Thread(this::syncLoop, "journal-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+        log.info("Journal opened in {}, {} unfinished sessions", directory, unfinished.size());
+        return unfinished;
+    }
+
+    private void read(int index, Map<Integer, SessionLog> sessions) throws IOException {
+        try (FileChannel file = FileChannel.open(segmentPath(index), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            int position = 0;
+            while (position + HEADER <= buffer.limit()) {
+                byte type = buffer.get(position);
+                int length = buffer.getShort(position + 1) & 0xFFFF;
+                int id = buffer.getInt(position + 3);
+                int payload = position + HEADER;
+                if (type == 0 || payload + length > buffer.limit()) {
+                    break;
+                }
+                position = payload + length;
+                if (type == START || type == RESTORE) {
+                    byte[] state = null;
+                    if (type == RESTORE) {
+                        if (length < 2 || 2 + (buffer.getShort(payload) & 0xFFFF) > length) {
+                            break;
+                        }
+                        state = new byte[buffer.getShort(payload) & 0xFFFF];
+                        buffer.get(payload + 2, state);
+                        payload += 2 + state.length;
+                        length -= 2 + state.length;
+                    }
+                    int length1 = length > 16 ? buffer.get(payload + 16) & 0xFF : 0;
+                    if (17 + length1 > length) {
+                        break;
+                    }
+                    byte[] name1 = new byte[length1];
+                    buffer.get(payload + 17, name1);
+                    byte[] name2 = new byte[length - length1 - 17];
+                    buffer.get(payload + 17 + length1, name2);
+                    SessionLog session = new SessionLog(id, new String(name1, StandardCharsets.UTF_8),
+                            new String(name2, StandardCharsets.UTF_8), buffer.getLong(payload), buffer.getLong(payload + 8));
+                    session.state = state;
+                    sessions.put(id, session);
+                    liveSessions.put(id, index);
+                    continue;
+                }
+                SessionLog session = sessions.get(id);
+                if (session == null) {
+                    continue; // Started in a segment that was already deleted
+                }
+                if (type == END) {
+                    session.ended = true;
+                    liveSessions.remove(id);
+                } else {
+                    int event = type << 24;
+                    for (int i = 0; i < Math.min(length, 3); i++) {
+                        event |= (buffer.get(payload + i) & 0xFF) << (16 - 8 * i);
+                    }
+                    session.add(event);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells whether the journal read by {@link #open()} accounts for a session of a previous run:
+     * the session was returned to be replayed, or it ended. A session of a previous run with no records left
+     * ended too, as a segment is only deleted once all its sessions ended.
+     *
+     * @param session the id of the session
+     * @return true if the journal holds the latest state of the session
+     */
+    public synchronized boolean accountsFor(int session) {
+        return session > 0 && session < firstSessionId;
+    }
+
+    /**
+     * @return a new session id, unique in this journal
+     */
+    public synchronized int nextSessionId() {
+        return nextSessionId++;
+    }
+
+    /**
+     * Records the start of a session with the names and the resume tokens of both players.
+     *
+     * @param session the session id
+     * @param player1 the username of the first player
+     * @param player2 the username of the second player
+     * @param token1  the resume token of the first player
+     * @param token2  the resume token of the second player
+     */
+    public void sessionStarted(int session, String player1, String player2, long token1, long token2) {
+        start(START, session, player1, player2, token1, token2, null);
+    }
+
+    /**
+     * Records the start of a session restored from a snapshot, in one record with the state it was restored to,
+     * so the session is replayed from that state.
+     *
+     * @param session the session id
+     * @param player1 the username of the first player
+     * @param player2 the username of the second player
+     * @param token1  the resume token of the first player
+     * @param token2  the resume token of the second player
+     * @param state   the state written by {@link GameSession#snapshot()}
+     */
+    public void sessionRestored(int session, String player1, String player2, long token1, long token2, byte[] state) {
+        start(RESTORE, session, player1, player2, token1, token2, state);
+    }
+
+    private void start(byte type, int session, String player1, String player2, long token1, long token2, byte[] state) {
+        byte[] name1 = player1.getBytes(StandardCharsets.UTF_8);
+        byte[] name2 = player2.getBytes(StandardCharsets.UTF_8);
+        int prefix = state != null ? 2 + state.length : 0;
+        int length1 = Math.min(name1.length, 255);
+        int length2 = Math.min(name2.length, 0xFFFF - prefix - 17 - length1);
+        synchronized (this) {
+            MappedByteBuffer buffer = reserve(prefix + 17 + length1 + length2);
+            int start = buffer.position();
+            buffer.position(start + 1);
+            buffer.putShort((short) (prefix + 17 + length1 + length2));
+            buffer.putInt(session);
+            if (state != null) {
+                buffer.putShort((short) state.length);
+                buffer.put(state);
+            }
+            buffer.putLong(token1);
+            buffer.putLong(token2);
+            buffer.put((byte) length1);
+            buffer.put(name1, 0, length1);
+            buffer.put(name2, 0, length2);
+            commit(buffer, start, type);
+            liveSessions.put(session, segmentIndex);
+        }
+    }
+
+    /**
+     * Records a ship placed by a player.
+     *
+     * @param session  the session id
+     * @param player   0 for the first player, 1 for the second
+     * @param x        x coordinate as sent by the player
+     * @param y        y coordinate as sent by the player
+     * @param shape    the shape of the ship
+     * @param rotation the rotation of the ship
+     */
+    public void place(int session, int player, int x, int y, ShipShape shape, int rotation) {
+        append(PLACE, session, player, packCell(x, y), shape.ordinal() << 4 | rotation, 3);
+    }
+
+    /**
+     * Records a shot, whatever its result, as every shot ends the turn.
+     *
+     * @param session the session id
+     * @param player  0 for the first player, 1 for the second
+     * @param x       x coordinate as sent by the player
+     * @param y       y coordinate as sent by the player
+     */
+    public void bomb(int session, int player, int x, int y) {
+        append(BOMB, session, player, packCell(x, y), 0, 2);
+    }
+
+    /**
+     * Records a turn that ended without a shot, because it timed out.
+     *
+     * @param session the session id
+     */
+    public void turnPassed(int session) {
+        append(TURN, session, 0, 0, 0, 0);
+    }
+
+    public synchronized void sessionEnded(int session) {
+        append(END, session, 0, 0, 0, 0);
+        liveSessions.remove(session);
+    }
+
+    /**
+     * Packs the coordinates into one byte. Coordinates off the board can't change the game, they are all recorded as 0.
+     */
+    private static int packCell(int x, int y) {
+        if (x < 1 || x > 10 || y < 1 || y > 10) {
+            return 0;
+        }
+        return x << 4 | y;
+    }
+
+    private synchronized void append(byte type, int session, int b1, int b2, int b3, int length) {
+        MappedByteBuffer buffer = reserve(length);
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putShort((short) length);
+        buffer.putInt(session);
+        if (length > 0) {
+            buffer.put((byte) b1);
+        }
+        if (length > 1) {
+            buffer.put((byte) b2);
+        }
+        if (length > 2) {
+            buffer.put((byte) b3);
+        }
+        commit(buffer, start, type);
+    }
+
+    /**
+     * Makes room for a record, rolling over to a new segment if the current one is full.
+     *
+     * @param payload the length of the payload
+     * @return the segment to write the record to
+     */
+    private MappedByteBuffer reserve(int payload) {
+        if (segment.remaining() < HEADER + payload + 1) {
+            try {
+                segment.force();
+                channel.close();
+                openSegment(segmentIndex + 1);
+                deleteObsoleteSegments();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot roll the journal over to a new segment", e);
+            }
+        }
+        return segment;
+    }
+
+    private void commit(MappedByteBuffer buffer, int start, byte type) {
+        buffer.put(start, type); // Written last, the record is complete from now on
+        dirty = true;
+        metrics.journalAppended(buffer.position() - start);
+    }
+
+    private void openSegment(int index) throws IOException {
+        segmentIndex = index;
+        channel = FileChannel.open(segmentPath(index), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        segments.add(index);
+        log.debug("Opened journal segment {}", index);
+    }
+
+    /**
+     * Deletes the segments older than the start of every live session, nothing in them is needed anymore.
+     */
+    private void deleteObsoleteSegments() {
+        int oldestNeeded = segmentIndex;
+        for (int index : liveSessions.values()) {
+            oldestNeeded = Math.min(oldestNeeded, index);
+        }
+        while (!segments.isEmpty() && segments.get(0) < oldestNeeded) {
+            int index = segments.remove(0);
+            try {
+                Files.deleteIfExists(segmentPath(index));
+                log.debug("Deleted journal segment {}", index);
+            } catch (IOException e) {
+                log.warn("Cannot delete journal segment {}: {}", index, e.getMessage());
+            }
+        }
+    }
+
+    private Path segmentPath(int index) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Forces the records written since the last sync to the disk, one sync for all of them.
+     */
+    private void syncLoop() {
+        while (running) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(syncNanos);
+            } catch (InterruptedException e) {
+                break;
+            }
+            sync();
+        }
+    }
+
+    private void sync() {
+        MappedByteBuffer toSync;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            toSync = segment;
+        }
+        long start = System.nanoTime();
+        toSync.force();
+        metrics.journalSynced(System.nanoTime() - start);
+    }
+
+    /**
+     * Stops the sync thread and syncs the records written since the last sync.
+     */
+    public void close() {
+        running = false;
+        if (syncer != null) {
+            syncer.interrupt();
+        }
+        sync();
+        synchronized (this) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                log.warn("Error closing the journal: {}", e.getMessage());
+            }
+        }
+    }
+}
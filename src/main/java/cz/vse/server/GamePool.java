@@ -0,0 +1,112 @@
+package cz.vse.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recycles the games of finished sessions, so a busy server doesn't allocate boards for every pairing.
+ * A session takes a {@link Game} when it is created and gives it back when it ends; the game is cleared when taken again.
+ * The pool is bounded, games given back to a full pool are left to the garbage collector.
+ * The pool is an array, so neither taking nor giving back a game allocates.
+ * With a {@link BoardSlab} the boards of a running game live off the heap, in a slot taken with the game and given back with it;
+ * when the slab is full, the game keeps its boards on the heap.
+ */
+public class GamePool {
+    private final ArrayBlockingQueue<Game> games;
+    private final BoardSlab slab;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder slabFull = new LongAdder();
+
+    /**
+     * @param capacity the maximum number of idle games kept, 0 keeps none
+     */
+    public GamePool(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param capacity the maximum number of idle games kept, 0 keeps none
+     * @param slab     the slab to keep the boards of running games in, null to keep them on the heap
+     */
+    public GamePool(int capacity, BoardSlab slab) {
+        this.games = capacity > 0 ? new ArrayBlockingQueue<>(capacity) : null;
+        this.slab = slab;
+    }
+
+    /**
+     * Takes an idle game, or creates one if there is none.
+     *
+     * @param session the session the game is for
+     * @return a game with empty boards
+     */
+    public Game acquire(GameSession session) {
+        int slot = slab != null ? slab.allocate() : -1;
+        if (slab != null && slot < 0) {
+            slabFull.increment();
+        }
+        Game game = games != null ? games.poll() : null;
+        if (game == null) {
+            misses.increment();
+            game = new Game(session, slab, slot);
+        } else {
+            hits.increment();
+            game.attach(session);
+            game.store(slab, slot);
+        }
+        game.initializeGame();
+        return game;
+    }
+
+    /**
+     * Gives back the game of a session that ended. Its session must not touch it any more.
+     *
+     * @param game the game
+     */
+    public void release(Game game) {
+        game.attach(null);
+        if (game.getSlot() >= 0) {
+            slab.free(game.getSlot()); // The views stay bound to the slot until the game is taken again
+        }
+        if (games != null) {
+            games.offer(game);
+        }
+    }
+
+    /**
+     * @return the number of idle games in the pool
+     */
+    public int getIdle() {
+        return games != null ? games.size() : 0;
+    }
+
+    /**
+     * @return the number of games created because the pool was empty
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the slab holding the boards of running games, null if they are on the heap
+     */
+    public BoardSlab getSlab() {
+        return slab;
+    }
+
+    /**
+     * @return the number of games that kept their boards on the heap because the slab was full
+     */
+    public long getSlabFull() {
+        return slabFull.sum();
+    }
+
+    /**
+     * @return the share of sessions that got a recycled game, 0 before the first session
+     */
+    public double getHitRatio() {
+        long reused = hits.sum();
+        long total = reused + misses.sum();
+        return total == 0 ? 0 : (double) reused / total;
+    }
+}
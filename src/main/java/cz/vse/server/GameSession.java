@@ -2,24 +2,79 @@ package cz.vse.server;
 
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents a game session between two players.
  * Handles the game state, player turns, and ship placement.
+ * Everything touching the state runs through the session's {@link SessionMailbox}, one task at a time,
+ * so the state needs no locks and the commands of both players can't race each other.
+ * Placement and turns have deadlines on the server's {@link TimingWheel}, a player can't stall the game forever.
+ * A player who loses the connection isn't out of the game right away: the session is parked for the player
+ * to come back with {@code RESUME <username> <token>} within the grace period, the token being sent when the session starts.
+ * Spectators follow the shots, turns and the result through the session's {@link SpectatorFeed}.
+ * Every change of the state is recorded in the {@link GameJournal}, so an unfinished session can be rebuilt after a crash
+ * by {@link #replay(GameJournal.SessionLog)} and continued once both players resumed, see {@link #reattach(ClientHandler)}.
+ * The state can also be captured whole for a {@link ServerSnapshot} and rebuilt from it by {@link #restore(ByteBuffer)}.
  */
 @Slf4j
 public class GameSession {
-    private final ClientHandler player1;
-    private final ClientHandler player2;
-    private final Game game;
+    private static final int SHIPS_PER_PLAYER = 7;
+    private static final SecureRandom TOKENS = new SecureRandom();
+    private static final int SNAPSHOT_BYTES = 2 * Long.BYTES + 3 + 2 * ShipShape.values().length + 2 * Board.SAVED_BYTES;
+
+    /**
+     * What happens to a player who doesn't bomb before the turn deadline.
+     */
+    public enum TurnTimeoutPolicy {
+        /**
+         * The player loses the game.
+         */
+        FORFEIT,
+
+        /**
+         * The player loses the turn, the opponent bombs next.
+         */
+        PASS
+    }
+
+    private ClientHandler player1;
+    private ClientHandler player2;
+    private final GamePool games;
+    private Game game; // Given back to the pool when the session ends
     private boolean player1Turn = true;
     private boolean placementPhase = true;
     private int player1ShipsPlaced = 0;
     private int player2ShipsPlaced = 0;
-    private final Map<ClientHandler, Map<ShipShape, Integer>> shipPlacementCount = new HashMap<>();
-
+    private final int[] player1Ships = new int[ShipShape.values().length]; // Ships placed by shape ordinal
+    private final int[] player2Ships = new int[ShipShape.values().length];
+    private final SessionMailbox mailbox;
+    private final TimingWheel timer;
+    private final int placementTimeoutSeconds;
+    private final int turnTimeoutSeconds;
+    private final TurnTimeoutPolicy turnTimeoutPolicy;
+    private final int reconnectGraceSeconds;
+    private final ServerMetrics metrics;
+    private final SpectatorFeed spectators;
+    private final GameJournal journal; // Null if the server keeps no journal
+    private final int id;
+    private boolean replaying = false;
+    private final String player1Name;
+    private final String player2Name;
+    private long player1Token;
+    private long player2Token;
+    private boolean player1Detached = false; // Lost the connection or recovered from the journal, the player isn't back yet
+    private boolean player2Detached = false;
+    private long startedAt;
+    private TimingWheel.Timeout placementTimeout;
+    private TimingWheel.Timeout turnTimeout;
+    private int turns = 0;
+    private boolean finished = false;
 
     /**
      * Constructor for GameSession.
@@ -27,19 +82,42 @@ public class GameSession {
      *
      * @param player1 The first player
      * @param player2 The second player
+     * @param pool    The pool running the tasks of the session's mailbox
+     * @param timer   The wheel the placement and turn deadlines are scheduled on
+     * @param config  The server configuration holding the deadlines
+     * @param metrics The metrics the session reports its commands and its duration to
      */
-    public GameSession(ClientHandler player1, ClientHandler player2) {
+    public GameSession(ClientHandler player1, ClientHandler player2, Executor pool, TimingWheel timer, ServerConfig config,
+                       ServerMetrics metrics) {
+        this(player1, player2, pool, timer, config, metrics, null, 0);
+    }
+
+    /**
+     * Constructor for a GameSession recording its events in a journal.
+     *
+     * @param journal The journal, null to record nothing
+     * @param id      The id of the session in the journal, 0 to take a new one
+     */
+    public GameSession(ClientHandler player1, ClientHandler player2, Executor pool, TimingWheel timer, ServerConfig config,
+                       ServerMetrics metrics, GameJournal journal, int id) {
+        this.journal = journal;
+        this.id = journal != null && id == 0 ? journal.nextSessionId() : id;
         this.player1 = player1;
         this.player2 = player2;
-        this.game = new Game(this);
-        this.game.initializeGame();
-
-        shipPlacementCount.put(player1, new HashMap<>());
-        shipPlacementCount.put(player2, new HashMap<>());
-        for (ShipShape shape : ShipShape.values()) {
-            shipPlacementCount.get(player1).put(shape, 0);
-            shipPlacementCount.get(player2).put(shape, 0);
-        }
+        this.player1Name = player1.getUsername();
+        this.player2Name = player2.getUsername();
+        this.player1Token = TOKENS.nextLong();
+        this.player2Token = TOKENS.nextLong();
+        this.mailbox = new SessionMailbox(pool);
+        this.timer = timer;
+        this.placementTimeoutSeconds = config.getPlacementTimeoutSeconds();
+        this.turnTimeoutSeconds = config.getTurnTimeoutSeconds();
+        this.turnTimeoutPolicy = config.getTurnTimeoutPolicy();
+        this.reconnectGraceSeconds = config.getReconnectGraceSeconds();
+        this.metrics = metrics;
+        this.spectators = new SpectatorFeed(player1Name, player2Name, metrics);
+        this.games = player1.getServer().getGamePool();
+        this.game = games.acquire(this);
     }
 
     /**
@@ -49,8 +127,8 @@ public class GameSession {
      * @param shape  The shape of the ship
      * @return true if the player can place the ship, false otherwise
      */
-    public synchronized boolean canPlaceShip(ClientHandler player, ShipShape shape) {
-        int count = shipPlacementCount.get(player).getOrDefault(shape, 0);
+    public boolean canPlaceShip(ClientHandler player, ShipShape shape) {
+        int count = shipsOf(player)[shape.ordinal()];
         if (shape == ShipShape.SIX_SHAPE) {
             return count < 1; // SIX_SHAPE can only be placed once
         }
@@ -63,31 +141,36 @@ public class GameSession {
      * @param player The player who placed the ship
      * @param shape  The shape of the ship
      */
-    public synchronized void incrementShipCount(ClientHandler player, ShipShape shape) {
-        int count = shipPlacementCount.get(player).getOrDefault(shape, 0);
-        shipPlacementCount.get(player).put(shape, count + 1);
+    public void incrementShipCount(ClientHandler player, ShipShape shape) {
+        shipsOf(player)[shape.ordinal()]++;
+    }
+
+    private int[] shipsOf(ClientHandler player) {
+        return player == player1 ? player1Ships : player2Ships;
     }
 
     /**
      * Switches the turn between players.
      * If it's the placement phase, the turn is not switched.
-     * Otherwise, it alternates the turn between player1 and player2.
+     * Otherwise, it alternates the turn between player1 and player2 and starts the deadline of the new turn.
      */
-    public synchronized void switchTurn() {
+    public void switchTurn() {
         if (placementPhase) {
             //do not switch turn during placement phase
             return;
-        } else {
-            if (this.isPlayer1Turn()) {
-                player1Turn = false;
-                player2.sendMessage("TURN");
-                game.checkForWin();
-            } else {
-                player1Turn = true;
-                player1.sendMessage("TURN");
-                game.checkForWin();
-            }
         }
+        player1Turn = !player1Turn;
+        getCurrentPlayer().sendMessage(Reply.TURN);
+        if (game.checkForWin()) {
+            finish(getOtherPlayer());
+            return;
+        }
+        spectators.publish(Reply.turnOf(player1Turn ? 1 : 2));
+        int turn = ++turns;
+        if (turnTimeout != null) {
+            turnTimeout.cancel();
+        }
+        turnTimeout = scheduleTimeout(turnTimeoutSeconds, () -> onTurnTimeout(turn));
     }
 
     /**
@@ -95,39 +178,45 @@ public class GameSession {
      * If both players have placed 8 ships, the placement phase ends.
      * @param player The player who placed the ship
      */
-    public synchronized void incrementShipsPlaced(ClientHandler player) {
+    public void incrementShipsPlaced(ClientHandler player) {
         if (player == player1) {
             player1ShipsPlaced++;
         } else if (player == player2) {
             player2ShipsPlaced++;
         }
 
-        if (player1ShipsPlaced >= 7 && player2ShipsPlaced >= 7) {
+        if (player1ShipsPlaced >= SHIPS_PER_PLAYER && player2ShipsPlaced >= SHIPS_PER_PLAYER) {
             placementPhase = false;
+            if (placementTimeout != null) {
+                placementTimeout.cancel();
+            }
         }
     }
 
     /**
      * Checks if it's the player's turn.
-     * If it's the placement phase, it returns true for both players.
+     * If it's the placement phase, it returns true for both players. Once the session ended it is nobody's turn.
      *
      * @param player The player to check
      * @return true if it's the player's turn, false otherwise
      */
-    public synchronized boolean isPlayerTurn(ClientHandler player) {
+    public boolean isPlayerTurn(ClientHandler player) {
+        if (finished) {
+            return false; // The game went back to the pool
+        }
         if (placementPhase) {
             return true;
         }
-        if (this.isPlayer1Turn() && (player == player1)) {
+        if (player1Turn && (player == player1)) {
             return true;
-        } else return !this.isPlayer1Turn() && (player == player2);
+        } else return !player1Turn && (player == player2);
     }
 
-    public synchronized boolean isPlacementPhase() {
+    public boolean isPlacementPhase() {
         return placementPhase;
     }
 
-    public synchronized boolean isPlayer1Turn() {
+    public boolean isPlayer1Turn() {
         return player1Turn;
     }
 
@@ -147,14 +236,594 @@ public class GameSession {
         }
     }
 
+    /**
+     * Runs a task in the session's mailbox, after all tasks submitted before it.
+     *
+     * @param task the task touching the session state
+     */
+    public void execute(Runnable task) {
+        mailbox.execute(task);
+    }
+
+    /**
+     * Processes a command of a player in the session's mailbox.
+     * If the mailbox is idle the command runs right away on the calling thread.
+     * Otherwise a copy is queued, because the parser reuses the command for the next line.
+     *
+     * @param message the command processor of the player
+     * @param command the decoded command
+     */
+    public void submit(Message message, Command command) {
+        if (mailbox.tryEnter()) {
+            try {
+                process(message, command);
+            } finally {
+                mailbox.exit();
+            }
+        } else {
+            Command copy = command.copy();
+            mailbox.execute(() -> process(message, copy));
+        }
+    }
+
+    private void process(Message message, Command command) {
+        long start = System.nanoTime();
+        try {
+            message.process(command);
+        } catch (IOException e) {
+            log.error("Error processing command {}: {}", command, e.getMessage());
+        }
+        metrics.commandProcessed(command.getType(), System.nanoTime() - start);
+    }
+
     /**
      * Starts the game session by notifying both players that they are ready.
      * This method is called after both players have placed their ships.
+     * Each player gets the token for resuming the session after losing the connection.
      */
     public void start() {
-        notifyAllClients("READY");
+        startedAt = System.nanoTime();
+        metrics.sessionStarted();
+        execute(() -> {
+            if (journal != null) {
+                journal.sessionStarted(id, player1Name, player2Name, player1Token, player2Token);
+            }
+            notifyAllClients(Reply.READY);
+            if (!player1.isRemote()) {
+                player1.sendMessage(Reply.token(player1Token));
+            }
+            if (!player2.isRemote()) {
+                player2.sendMessage(Reply.token(player2Token));
+            }
+            placementTimeout = scheduleTimeout(placementTimeoutSeconds, this::onPlacementTimeout);
+        });
+    }
+
+    /**
+     * Handles a player whose connection closed and releases the player's username.
+     * While the game is on, the session is parked instead and keeps the username for the player to resume;
+     * the opponent wins if the player doesn't come back within the grace period, or right away if there is none.
+     * Players on another node of a cluster can't resume, their sessions are never parked.
+     *
+     * @param player The player who left
+     */
+    public void playerLeft(ClientHandler player) {
+        execute(() -> {
+            boolean first = player == player1;
+            if (!first && player != player2 || finished) {
+                player.getServer().removeActiveUser(player);
+                return;
+            }
+            if (reconnectGraceSeconds > 0 && !player.isRemote()) {
+                park(first);
+                return;
+            }
+            finish(getOtherPlayerInSession(player));
+            getOtherPlayerInSession(player).sendMessage(Reply.WIN);
+            player.getServer().removeActiveUser(player);
+        });
+    }
+
+    /**
+     * Ends the game because a player quit, the opponent wins.
+     * Runs in the mailbox, the player's connection is closed afterwards.
+     *
+     * @param player The player who quit
+     */
+    void playerQuit(ClientHandler player) {
+        if (!finished) {
+            finish(getOtherPlayerInSession(player));
+            getOtherPlayerInSession(player).sendMessage(Reply.WIN);
+        }
+    }
+
+    /**
+     * Keeps the session for a player who lost the connection. The deadlines of the game keep running meanwhile.
+     *
+     * @param first true for the first player, false for the second one
+     */
+    private void park(boolean first) {
+        ClientHandler player = first ? player1 : player2;
+        if (first) {
+            player1Detached = true;
+        } else {
+            player2Detached = true;
+        }
+        player.getServer().park(player.getUsername(), this);
+        metrics.playerParked();
+        log.info("{} lost the connection, session {} waits {} seconds for the player to resume",
+                player.getUsername(), id, reconnectGraceSeconds);
+        timer.schedule(() -> execute(() -> {
+            boolean stillAway = first ? player1 == player && player1Detached : player2 == player && player2Detached;
+            if (!finished && stillAway) {
+                abandon();
+            }
+        }), reconnectGraceSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Checks the token a player presented to resume the session.
+     *
+     * @param username the username of the player
+     * @param token    the token
+     * @return true if the token is the one the player got when the session started
+     */
+    boolean acceptsToken(String username, long token) {
+        if (username.equals(player1Name)) {
+            return token == player1Token;
+        }
+        return username.equals(player2Name) && token == player2Token;
+    }
+
+    public boolean isFinished() {
+        return finished;
     }
 
+    /**
+     * Records a ship placed by a player in the journal.
+     *
+     * @param player   the player who placed the ship
+     * @param x        x coordinate
+     * @param y        y coordinate
+     * @param shape    the shape of the ship
+     * @param rotation the rotation of the ship
+     */
+    public void recordPlace(ClientHandler player, int x, int y, ShipShape shape, int rotation) {
+        if (journal != null && !replaying) {
+            journal.place(id, player == player1 ? 0 : 1, x, y, shape, rotation);
+        }
+    }
+
+    /**
+     * Records a shot of the current player in the journal and shows it to the spectators, before the turn switches.
+     *
+     * @param x      x coordinate
+     * @param y      y coordinate
+     * @param result the result of the shot
+     */
+    public void recordBomb(int x, int y, Reply result) {
+        if (journal != null && !replaying) {
+            journal.bomb(id, player1Turn ? 0 : 1, x, y);
+        }
+        if (result != Reply.FAILURE) {
+            spectators.publish(result);
+        }
+    }
+
+    /**
+     * Lets a spectator watch the game, see {@link SpectatorFeed}.
+     *
+     * @param spectator the spectator
+     */
+    void addSpectator(ClientHandler spectator) {
+        execute(() -> {
+            if (finished) {
+                close(spectator);
+            } else {
+                spectators.add(spectator);
+            }
+        });
+    }
+
+    void removeSpectator(ClientHandler spectator) {
+        execute(() -> spectators.remove(spectator));
+    }
+
+    /**
+     * Rebuilds the state of a session from its journaled events,
+     * starting from the snapshot state if the session was restored from a snapshot.
+     * The players are placeholders until they log in again, nothing is sent and no deadline runs meanwhile.
+     *
+     * @param log the events of the session
+     */
+    void replay(GameJournal.SessionLog log) {
+        player1Token = log.getToken1();
+        player2Token = log.getToken2();
+        player1Detached = true;
+        player2Detached = true;
+        replaying = true;
+        try {
+            ByteBuffer state = log.getState();
+            if (state != null) {
+                restore(state);
+            }
+            for (int i = 0; i < log.getEventCount() && !finished; i++) {
+                replay(log.getEvent(i));
+            }
+        } finally {
+            replaying = false;
+        }
+    }
+
+    /**
+     * Applies one event the same way {@link Message} applied the command it stands for.
+     *
+     * @param event the type, the player, the packed coordinates and the packed shape and rotation, a byte each
+     */
+    private void replay(int event) {
+        int type = event >>> 24;
+        ClientHandler player = ((event >> 16) & 0xFF) == 0 ? player1 : player2;
+        int x = (event >> 12) & 0xF;
+        int y = (event >> 8) & 0xF;
+        if (type == GameJournal.PLACE) {
+            int shapeIndex = (event >> 4) & 0xF;
+            if (shapeIndex >= ShipShape.values().length) {
+                return;
+            }
+            ShipShape shape = ShipShape.values()[shapeIndex];
+            if (game.place(x, y, shape, event & 0xF, player) == Reply.SUCCESS) {
+                incrementShipCount(player, shape);
+                incrementShipsPlaced(player);
+                switchTurn();
+            }
+        } else if (type == GameJournal.BOMB) {
+            recordBomb(x, y, game.bomb(x, y));
+            switchTurn();
+        } else if (type == GameJournal.TURN) {
+            switchTurn();
+        }
+    }
+
+    /**
+     * Captures the state of the session for a {@link ServerSnapshot}. Runs in the mailbox, between two commands,
+     * so the state is consistent without stopping any other session:
+     * {@code [token1: 8][token2: 8][turn and phase: 1][ships placed: 1 + 1][ships by shape: 4 + 4][board1][board2]},
+     * the boards written by {@link Board#save(ByteBuffer)}.
+     *
+     * @return the state, null if the session is finished
+     */
+    byte[] snapshot() {
+        if (finished) {
+            return null;
+        }
+        ByteBuffer out = ByteBuffer.allocate(SNAPSHOT_BYTES);
+        out.putLong(player1Token);
+        out.putLong(player2Token);
+        out.put((byte) ((player1Turn ? 1 : 0) | (placementPhase ? 2 : 0)));
+        out.put((byte) player1ShipsPlaced);
+        out.put((byte) player2ShipsPlaced);
+        for (int count : player1Ships) {
+            out.put((byte) count);
+        }
+        for (int count : player2Ships) {
+            out.put((byte) count);
+        }
+        game.getBoard(true).save(out);
+        game.getBoard(false).save(out);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * Rebuilds the state of a session from a snapshot, like {@link #replay(GameJournal.SessionLog)} from the journal.
+     * The players are placeholders until they log in again, nothing is sent and no deadline runs meanwhile.
+     *
+     * @param state the state written by {@link #snapshot()}
+     */
+    void restore(ByteBuffer state) {
+        player1Token = state.getLong();
+        player2Token = state.getLong();
+        player1Detached = true;
+        player2Detached = true;
+        int flags = state.get();
+        player1Turn = (flags & 1) != 0;
+        placementPhase = (flags & 2) != 0;
+        player1ShipsPlaced = state.get();
+        player2ShipsPlaced = state.get();
+        for (int i = 0; i < player1Ships.length; i++) {
+            player1Ships[i] = state.get();
+        }
+        for (int i = 0; i < player2Ships.length; i++) {
+            player2Ships[i] = state.get();
+        }
+        game.getBoard(true).restore(state);
+        game.getBoard(false).restore(state);
+    }
+
+    /**
+     * Journals a session restored from a snapshot, starting from its restored state,
+     * so the journal recovers the session with the moves made after the restart should the server crash again.
+     */
+    void journalRestored() {
+        if (journal != null) {
+            journal.sessionRestored(id, player1Name, player2Name, player1Token, player2Token, snapshot());
+        }
+    }
+
+    /**
+     * Puts a player who resumed in place of the lost connection, or of the placeholder of a recovered session,
+     * and sends the player the whole state of the game, see {@link Reply#sync(int, Board, Board)}.
+     * A recovered session continues when both players are back.
+     *
+     * @param client the player, logged in with the username and the token of a detached player
+     */
+    void reattach(ClientHandler client) {
+        execute(() -> {
+            boolean first = player1Detached && client.getUsername().equals(player1Name);
+            boolean second = !first && player2Detached && client.getUsername().equals(player2Name);
+            if (finished || !first && !second) {
+                // The session ended meanwhile, find a new game
+                client.setGameSession(null);
+                try {
+                    client.getServer().addWaitingClient(client);
+                } catch (IOException e) {
+                    log.error("Error enqueuing client {}: {}", client.getUsername(), e.getMessage());
+                }
+                return;
+            }
+            ClientHandler previous = first ? player1 : player2;
+            if (first) {
+                player1 = client;
+                player1Detached = false;
+            } else {
+                player2 = client;
+                player2Detached = false;
+            }
+            client.setGameSession(this);
+            client.getServer().transferUsername(previous, client);
+            close(previous);
+            metrics.playerResumed();
+            int phase = placementPhase ? Reply.SYNC_PLACE : player1Turn == first ? Reply.SYNC_TURN : Reply.SYNC_WAIT;
+            client.sendMessage(Reply.sync(phase, game.getBoard(first), game.getBoard(!first)));
+            log.info("{} is back in session {}", client.getUsername(), id);
+            if (startedAt == 0 && !player1Detached && !player2Detached) {
+                resume();
+            }
+        });
+    }
+
+    /**
+     * Continues a recovered session once both players are back, like {@link #start()} for the current phase.
+     */
+    private void resume() {
+        startedAt = System.nanoTime();
+        metrics.sessionStarted();
+        notifyAllClients(Reply.READY);
+        if (placementPhase) {
+            placementTimeout = scheduleTimeout(placementTimeoutSeconds, this::onPlacementTimeout);
+        } else {
+            getCurrentPlayer().sendMessage(Reply.TURN);
+            int turn = ++turns;
+            turnTimeout = scheduleTimeout(turnTimeoutSeconds, () -> onTurnTimeout(turn));
+        }
+        log.info("Session {} between {} and {} resumed", id, player1.getUsername(), player2.getUsername());
+    }
+
+    /**
+     * Ends a recovered session if a player didn't come back in time, a player who did wins.
+     */
+    void abandonIfDetached() {
+        execute(() -> {
+            if (!finished && (player1Detached || player2Detached)) {
+                abandon();
+            }
+        });
+    }
+
+    private void abandon() {
+        log.info("Session {} between {} and {} abandoned, not both players came back", id, player1Name, player2Name);
+        ClientHandler winner = !player1Detached ? player1 : !player2Detached ? player2 : null;
+        finish(winner);
+        if (winner != null) {
+            winner.sendMessage(Reply.WIN);
+        }
+        if (player1Detached) {
+            close(player1);
+        }
+        if (player2Detached) {
+            close(player2);
+        }
+    }
+
+    private void close(ClientHandler client) {
+        try {
+            client.closeConnection(false);
+        } catch (IOException e) {
+            log.error("Error closing connection for client {}: {}", client, e.getMessage());
+        }
+    }
+
+    /**
+     * Schedules a deadline whose handler runs in the session's mailbox.
+     *
+     * @param seconds the deadline, 0 means no deadline
+     * @param handler the handler, it must check the deadline is still current as cancelling may come too late
+     * @return the scheduled timeout or null if there is no deadline
+     */
+    private TimingWheel.Timeout scheduleTimeout(int seconds, Runnable handler) {
+        if (seconds == 0 || replaying) {
+            return null;
+        }
+        return timer.schedule(() -> execute(handler), seconds, TimeUnit.SECONDS);
+    }
+
+    private void onPlacementTimeout() {
+        if (finished || !placementPhase) {
+            return;
+        }
+        boolean player1Late = player1ShipsPlaced < SHIPS_PER_PLAYER;
+        boolean player2Late = player2ShipsPlaced < SHIPS_PER_PLAYER;
+        log.info("Placement timed out between {} and {}", player1Name, player2Name);
+        if (player1Late && player2Late) {
+            finish(null);
+            notifyAllClients(Reply.LOST);
+            disconnect(player1);
+            disconnect(player2);
+        } else {
+            forfeit(player1Late ? player1 : player2);
+        }
+    }
+
+    private void onTurnTimeout(int turn) {
+        if (finished || turn != turns) {
+            return;
+        }
+        ClientHandler player = getCurrentPlayer();
+        log.info("Turn of {} timed out", player.getUsername());
+        if (turnTimeoutPolicy == TurnTimeoutPolicy.PASS) {
+            if (journal != null) {
+                journal.turnPassed(id);
+            }
+            player.sendMessage(Reply.TIMEOUT);
+            switchTurn();
+        } else {
+            forfeit(player);
+        }
+    }
+
+    private void forfeit(ClientHandler loser) {
+        finish(getOtherPlayerInSession(loser));
+        loser.sendMessage(Reply.LOST);
+        getOtherPlayerInSession(loser).sendMessage(Reply.WIN);
+        disconnect(loser);
+    }
+
+    /**
+     * Ends the game and tells the spectators the result.
+     * The usernames of players who are away are released here, as they won't close their connection anymore.
+     *
+     * @param winner the player who won, null if both lost
+     */
+    private void finish(ClientHandler winner) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        spectators.publish(winner == null ? Reply.LOST : Reply.winOf(winner == player1 ? 1 : 2));
+        spectators.close();
+        player1.getServer().forgetSession(player1Name, this);
+        player1.getServer().forgetSession(player2Name, this);
+        if (player1Detached) {
+            release(player1);
+        }
+        if (player2Detached) {
+            release(player2);
+        }
+        if (startedAt != 0) {
+            metrics.sessionFinished(System.nanoTime() - startedAt);
+        }
+        if (journal != null) {
+            journal.sessionEnded(id);
+        }
+        if (placementTimeout != null) {
+            placementTimeout.cancel();
+        }
+        if (turnTimeout != null) {
+            turnTimeout.cancel();
+        }
+        games.release(game);
+        game = null;
+    }
+
+    /**
+     * Ends the session on this server without a result, because the server is shutting down.
+     * The players are disconnected and nothing is journaled, so the next run recovers the session from the journal
+     * and the players resume it there with their tokens.
+     */
+    public void handOff() {
+        execute(this::leave);
+    }
+
+    /**
+     * Captures the state of the session for the last {@link ServerSnapshot} and hands it off, see {@link #handOff()}.
+     * Runs in the mailbox, so the snapshot holds every command the session processed.
+     *
+     * @return the state, null if the session is finished
+     */
+    byte[] snapshotAndHandOff() {
+        byte[] state = snapshot();
+        leave();
+        return state;
+    }
+
+    private void leave() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        spectators.close();
+        player1.getServer().forgetSession(player1Name, this);
+        player1.getServer().forgetSession(player2Name, this);
+        player1.getServer().unpark(player1Name, this);
+        player1.getServer().unpark(player2Name, this);
+        if (startedAt != 0) {
+            metrics.sessionHandedOff();
+        }
+        if (placementTimeout != null) {
+            placementTimeout.cancel();
+        }
+        if (turnTimeout != null) {
+            turnTimeout.cancel();
+        }
+        games.release(game);
+        game = null;
+        hangUp(player1);
+        hangUp(player2);
+    }
+
+    /**
+     * Gives back the game of a recovered session that won't run, because its state is damaged or its players are taken.
+     * The session is journaled as ended, so the next run doesn't recover it again.
+     */
+    void discard() {
+        if (finished) {
+            return; // The game was given back when the replay finished it
+        }
+        finished = true;
+        if (journal != null) {
+            journal.sessionEnded(id);
+        }
+        games.release(game);
+        game = null;
+    }
+
+    private void hangUp(ClientHandler player) {
+        try {
+            player.closeConnection(false);
+        } catch (IOException e) {
+            log.error("Error closing connection for client {}: {}", player.getUsername(), e.getMessage());
+        }
+    }
+
+    private void release(ClientHandler player) {
+        player.getServer().unpark(player.getUsername(), this);
+        player.getServer().removeActiveUser(player);
+    }
+
+    private void disconnect(ClientHandler player) {
+        try {
+            player.closeConnection(true);
+        } catch (IOException e) {
+            log.error("Error closing connection for client {}: {}", player.getUsername(), e.getMessage());
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the game, null once the session ended and gave it back to the {@link GamePool}
+     */
     public Game getGame() {
         return this.game;
     }
@@ -174,7 +843,7 @@ public class GameSession {
      *
      * @param s The message to be sent to both players
      */
-    public void notifyAllClients(String s) {
+    public void notifyAllClients(Reply s) {
         player1.sendMessage(s);
         player2.sendMessage(s);
     }
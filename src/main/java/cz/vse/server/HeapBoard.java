@@ -0,0 +1,83 @@
+package cz.vse.server;
+
+import java.util.Arrays;
+
+/**
+ * A board keeping its state in its own fields and arrays on the Java heap.
+ */
+public class HeapBoard extends Board {
+    private final long[] layers = new long[LAYERS];
+    private final byte[] shipAt = new byte[CELLS];
+    private final int[] placements = new int[MAX_SHIPS];
+    private final byte[] shipCellsLeft = new byte[MAX_SHIPS];
+    private int ships;
+    private int cellsLeft;
+
+    @Override
+    public void clear() {
+        Arrays.fill(layers, 0L);
+        Arrays.fill(shipAt, (byte) 0);
+        ships = 0;
+        cellsLeft = 0;
+    }
+
+    @Override
+    long layer(int layer) {
+        return layers[layer];
+    }
+
+    @Override
+    void setLayer(int layer, long bits) {
+        layers[layer] = bits;
+    }
+
+    @Override
+    int shipAt(int cell) {
+        return shipAt[cell];
+    }
+
+    @Override
+    void setShipAt(int cell, int ship) {
+        shipAt[cell] = (byte) ship;
+    }
+
+    @Override
+    int placement(int ship) {
+        return placements[ship];
+    }
+
+    @Override
+    void setPlacement(int ship, int placement) {
+        placements[ship] = placement;
+    }
+
+    @Override
+    int shipCellsLeft(int ship) {
+        return shipCellsLeft[ship];
+    }
+
+    @Override
+    void setShipCellsLeft(int ship, int cells) {
+        shipCellsLeft[ship] = (byte) cells;
+    }
+
+    @Override
+    int ships() {
+        return ships;
+    }
+
+    @Override
+    void setShips(int ships) {
+        this.ships = ships;
+    }
+
+    @Override
+    int cellsLeft() {
+        return cellsLeft;
+    }
+
+    @Override
+    void setCellsLeft(int cells) {
+        this.cellsLeft = cells;
+    }
+}
@@ -0,0 +1,114 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coordinator of nodes running in one JVM, the reference implementation of {@link ClusterCoordinator}.
+ * Pairs players in the order they were queued, like {@link FifoPairingStrategy},
+ * and delivers routed messages by calling the target node directly on the calling thread.
+ */
+public class LocalClusterCoordinator implements ClusterCoordinator {
+    private final Map<String, ClusterNode> nodes = new ConcurrentHashMap<>();
+    private final Map<String, String> usernames = new ConcurrentHashMap<>(); // Username to the node of its connection
+    private final Deque<Waiting> waiting = new ArrayDeque<>(); // Guarded by itself
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private static final class Waiting {
+        private final String username;
+        private final String nodeId;
+
+        private Waiting(String username, String nodeId) {
+            this.username = username;
+            this.nodeId = nodeId;
+        }
+    }
+
+    @Override
+    public void join(ClusterNode node) {
+        nodes.put(node.getNodeId(), node);
+        log.info("Node {} joined the cluster", node.getNodeId());
+    }
+
+    @Override
+    public void leave(ClusterNode node) {
+        nodes.remove(node.getNodeId());
+        usernames.values().removeIf(node.getNodeId()::equals);
+        synchronized (waiting) {
+            waiting.removeIf(player -> player.nodeId.equals(node.getNodeId()));
+        }
+        log.info("Node {} left the cluster", node.getNodeId());
+    }
+
+    @Override
+    public boolean claimUsername(String username, String nodeId) {
+        return usernames.putIfAbsent(username, nodeId) == null;
+    }
+
+    @Override
+    public void releaseUsername(String username, String nodeId) {
+        if (usernames.remove(username, nodeId)) {
+            synchronized (waiting) {
+                waiting.removeIf(player -> player.username.equals(username));
+            }
+        }
+    }
+
+    @Override
+    public void enqueue(String username, String nodeId) {
+        Waiting player1;
+        Waiting player2;
+        synchronized (waiting) {
+            waiting.add(new Waiting(username, nodeId));
+            if (waiting.size() < 2) {
+                return;
+            }
+            player1 = waiting.poll();
+            player2 = waiting.poll();
+        }
+        ClusterNode owner = nodes.get(player1.nodeId);
+        if (owner == null) {
+            enqueue(player2.username, player2.nodeId);
+            return;
+        }
+        log.debug("Paired {}@{} with {}@{}", player1.username, player1.nodeId, player2.username, player2.nodeId);
+        owner.startSession(player1.username, player2.nodeId, player2.username);
+    }
+
+    @Override
+    public void sendLine(String nodeId, String username, String line) {
+        ClusterNode node = nodes.get(nodeId);
+        if (node != null) {
+            node.receiveLine(username, line);
+        }
+    }
+
+    @Override
+    public void sendMessage(String nodeId, String fromNode, String username, String message) {
+        ClusterNode node = nodes.get(nodeId);
+        if (node != null) {
+            node.receiveMessage(fromNode, username, message);
+        }
+    }
+
+    @Override
+    public void sendDisconnected(String nodeId, String username) {
+        ClusterNode node = nodes.get(nodeId);
+        if (node != null) {
+            node.remoteDisconnected(username);
+        }
+    }
+
+    @Override
+    public void sendClose(String nodeId, String username) {
+        ClusterNode node = nodes.get(nodeId);
+        if (node != null) {
+            node.closeClient(username);
+        }
+    }
+}
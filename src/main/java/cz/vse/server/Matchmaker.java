@@ -0,0 +1,200 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Pairs waiting players into game sessions.
+ * Logins only append to a lock-free lobby and wake the pairing thread, so they never wait for each other.
+ * The pairing thread drains the lobby in batches, drops players who left meanwhile
+ * and lets the {@link PairingStrategy} decide who plays whom.
+ * A player left without an opponent for too long may be given a game against the server's bot.
+ */
+public class Matchmaker implements Runnable {
+    private static final long IDLE_WAKEUP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Queue<WaitingPlayer> lobby = new ConcurrentLinkedQueue<>();
+    private final List<WaitingPlayer> waiting = new ArrayList<>(); // Owned by the pairing thread
+    private final PairingStrategy strategy;
+    private final BiConsumer<ClientHandler, ClientHandler> sessionStarter;
+    private final int batchSize;
+    private final Consumer<ClientHandler> botStarter;
+    private final long botAfterNanos;
+    private final AtomicBoolean signalled = new AtomicBoolean();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final ServerMetrics metrics;
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private volatile boolean running = true;
+    private Thread thread;
+
+    /**
+     * @param strategy       decides which players are paired
+     * @param sessionStarter starts the game of a pair, called on the pairing thread
+     * @param batchSize      the maximum number of players taken from the lobby in one round
+     * @param metrics        the metrics the pairs made are reported to
+     */
+    public Matchmaker(PairingStrategy strategy, BiConsumer<ClientHandler, ClientHandler> sessionStarter, int batchSize,
+                      ServerMetrics metrics) {
+        this(strategy, sessionStarter, batchSize, metrics, null, 0);
+    }
+
+    /**
+     * @param strategy       decides which players are paired
+     * @param sessionStarter starts the game of a pair, called on the pairing thread
+     * @param batchSize      the maximum number of players taken from the lobby in one round
+     * @param metrics        the metrics the pairs made are reported to
+     * @param botStarter     starts the game of a player against the bot, called on the pairing thread
+     * @param botAfterNanos  how long a player waits for a human opponent before playing the bot, 0 never plays the bot
+     */
+    public Matchmaker(PairingStrategy strategy, BiConsumer<ClientHandler, ClientHandler> sessionStarter, int batchSize,
+                      ServerMetrics metrics, Consumer<ClientHandler> botStarter, long botAfterNanos) {
+        this.strategy = strategy;
+        this.sessionStarter = sessionStarter;
+        this.batchSize = batchSize;
+        this.metrics = metrics;
+        this.botStarter = botStarter;
+        this.botAfterNanos = botStarter != null ? botAfterNanos : 0;
+    }
+
+    /**
+     * Starts the pairing thread.
+     */
+    public void start() {
+        thread = new Thread(this, "matchmaker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Puts a logged in client into the lobby.
+     *
+     * @param client the client looking for an opponent
+     */
+    public void enqueue(ClientHandler client) {
+        lobby.add(new WaitingPlayer(client, System.nanoTime()));
+        queueDepth.incrementAndGet();
+        if (signalled.compareAndSet(false, true)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Stops the pairing thread.
+     *
+     * @return the clients that were still waiting for an opponent
+     */
+    public List<ClientHandler> shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+        if (thread != null) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<ClientHandler> remaining = new ArrayList<>();
+        for (WaitingPlayer player : waiting) {
+            remaining.add(player.getClient());
+        }
+        for (WaitingPlayer player : lobby) {
+            remaining.add(player.getClient());
+        }
+        waiting.clear();
+        lobby.clear();
+        queueDepth.set(0);
+        return remaining;
+    }
+
+    @Override
+    public void run() {
+        log.info("Matchmaker started with {}", strategy.getClass().getSimpleName());
+        while (running) {
+            signalled.set(false);
+            try {
+                drainLobby();
+                dropDisconnected();
+                strategy.pair(waiting, this::startSession);
+                matchBots();
+            } catch (RuntimeException e) {
+                log.error("Error pairing players: {}", e.getMessage(), e);
+            }
+            if (lobby.isEmpty() && running) {
+                LockSupport.parkNanos(this, IDLE_WAKEUP_NANOS);
+            }
+        }
+        log.info("Matchmaker stopped");
+    }
+
+    private void drainLobby() {
+        WaitingPlayer player;
+        for (int i = 0; i < batchSize && (player = lobby.poll()) != null; i++) {
+            waiting.add(player);
+        }
+    }
+
+    private void dropDisconnected() {
+        Iterator<WaitingPlayer> iterator = waiting.iterator();
+        while (iterator.hasNext()) {
+            WaitingPlayer player = iterator.next();
+            if (player.getClient().isClosing()) {
+                iterator.remove();
+                queueDepth.decrementAndGet();
+                log.debug("{} left the lobby before being paired", player.getClient().getUsername());
+            }
+        }
+    }
+
+    private void matchBots() {
+        if (botAfterNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<WaitingPlayer> iterator = waiting.iterator();
+        while (iterator.hasNext()) {
+            WaitingPlayer player = iterator.next();
+            if (now - player.getEnqueuedAt() < botAfterNanos) {
+                continue;
+            }
+            iterator.remove();
+            queueDepth.decrementAndGet();
+            metrics.botMatched(now - player.getEnqueuedAt());
+            try {
+                botStarter.accept(player.getClient());
+            } catch (RuntimeException e) {
+                log.error("Error starting game session between {} and the bot: {}", player.getClient().getUsername(), e.getMessage(), e);
+            }
+        }
+    }
+
+    private void startSession(WaitingPlayer player1, WaitingPlayer player2) {
+        queueDepth.addAndGet(-2);
+        long now = System.nanoTime();
+        metrics.playersMatched(now - player1.getEnqueuedAt(), now - player2.getEnqueuedAt());
+        try {
+            sessionStarter.accept(player1.getClient(), player2.getClient());
+        } catch (RuntimeException e) {
+            log.error("Error starting game session between {} and {}: {}",
+                    player1.getClient().getUsername(), player2.getClient().getUsername(), e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the number of players waiting for an opponent
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+}
@@ -8,73 +8,92 @@ import java.io.IOException;
 /**
  * The Message class processes incoming messages from clients and handles game commands.
  * It validates the commands, interacts with the GameSession, and sends responses back to clients.
+ * Every client has a single instance which processes all of its commands.
  */
 public class Message {
     private static final Logger log = LoggerFactory.getLogger(Message.class);
-    private final String message;
-    private final GameSession gameSession;
     private final ClientHandler sender;
 
     /**
-     * Enum representing the different commands that can be processed.
+     * Enum representing the different commands that can be processed, with their opcodes in the binary format.
      */
-    private enum COMMAND {
-        PLACE,
-        BOMB,
-        MOVE,
-        PING,
-        QUIT
+    enum COMMAND {
+        USER(1),
+        PLACE(2),
+        BOMB(3),
+        MOVE(4),
+        PING(5),
+        QUIT(6),
+        RESUME(7),
+        WATCH(8);
+
+        private static final COMMAND[] BY_CODE = new COMMAND[9];
+
+        static {
+            for (COMMAND command : values()) {
+                BY_CODE[command.code] = command;
+            }
+        }
+
+        private final int code;
+
+        COMMAND(int code) {
+            this.code = code;
+        }
+
+        int getCode() {
+            return code;
+        }
+
+        /**
+         * @param code the opcode of a binary frame
+         * @return the command or null if the opcode is unknown
+         */
+        static COMMAND byCode(int code) {
+            return code < BY_CODE.length ? BY_CODE[code] : null;
+        }
     }
 
     /**
      * Constructor for the Message class.
      *
-     * @param message      The message received from the client.
-     * @param gameSession  The current game session.
-     * @param sender       The client handler that sent the message.
+     * @param sender       The client handler whose commands are processed.
      */
-    public Message(String message, GameSession gameSession, ClientHandler sender) {
-        this.message = message;
-        this.gameSession = gameSession;
+    public Message(ClientHandler sender) {
         this.sender = sender;
     }
 
     /**
-     * Processes the incoming message and executes the corresponding command.
+     * Processes the command and executes it in the sender's game session.
      *
-     * @param message The message to be processed.
+     * @param command The decoded command to be processed.
      */
-    public void process(String message) throws IOException {
+    public void process(Command command) throws IOException {
+        GameSession gameSession = sender.getGameSession();
+        COMMAND type = command.getType();
 
-        String[] parts = message.split(" ");
-
-        if (message.startsWith(COMMAND.QUIT.name())) {
-            handleQuitCommand();
-        } else if (message.startsWith(COMMAND.PING.name())) {
+        if (type == COMMAND.QUIT) {
+            handleQuitCommand(gameSession);
+            return;
+        } else if (type == COMMAND.PING) {
             handlePingCommand();
+            return;
         }
 
         if (!gameSession.isPlayerTurn(sender)) {
-            log.warn("Command could not be processed: {}, it is not {}`s turn", message, sender.getUsername());
+            log.debug("Command could not be processed: {}, it is not {}`s turn", command, sender.getUsername());
             return;
         }
 
         Game game = gameSession.getGame();
 
-        log.info("Received message: {}", message);
-
-        if (message.startsWith(COMMAND.PLACE.name())) {
-            handlePlaceCommand(game, parts);
-        } else if (message.startsWith(COMMAND.BOMB.name())) {
-            handleBombCommand(game, parts);
-        }
-
-        try {
-            COMMAND.valueOf(parts[0]);
-        } catch (IllegalArgumentException e) {
-            log.error("Invalid command received: {}", parts[0]);
-            sender.sendMessage("FAILURE");
-            return;
+        if (type == COMMAND.PLACE) {
+            handlePlaceCommand(gameSession, game, command);
+        } else if (type == COMMAND.BOMB) {
+            handleBombCommand(gameSession, game, command);
+        } else if (type == null || type == COMMAND.USER || type == COMMAND.RESUME || type == COMMAND.WATCH) {
+            log.debug("Invalid command received: {}", command);
+            sender.sendMessage(Reply.FAILURE);
         }
     }
 
@@ -82,43 +101,37 @@ public class Message {
      * Handles the PLACE command.
      * Validates the command and places a ship in the game if the command is valid.
      *
-     * @param game  The current game instance.
-     * @param parts The parts of the command split by spaces.
+     * @param gameSession The current game session.
+     * @param game        The current game instance.
+     * @param command     The decoded command.
      */
-    private void handlePlaceCommand(Game game, String[] parts) {
+    private void handlePlaceCommand(GameSession gameSession, Game game, Command command) {
         if (gameSession.isPlacementPhase()) {
-            if (parts.length != 5) {
-                log.warn("Invalid PLACE command: {}", message);
-                sender.sendMessage("FAILURE");
+            if (command.isMalformed()) {
+                log.debug("Invalid PLACE command: {}", command);
+                sender.sendMessage(Reply.FAILURE);
                 return;
             }
-            try {
-                int x = Integer.parseInt(parts[1]);
-                int y = Integer.parseInt(parts[2]);
-                int[][] shape = ShipShape.valueOf(parts[3]).getShape();
-                int r = Integer.parseInt(parts[4]);
-
-                if (!gameSession.canPlaceShip(sender, ShipShape.valueOf(parts[3]))) {
-                    sender.sendMessage("FAILURE");
-                    log.warn("Player {} tried to place more ships of type {} than allowed", sender.getUsername(), parts[3]);
-                    return;
-                }
-                String result = game.place(x, y, shape, r, sender);
-                if (result.equals("SUCCESS")) {
-                    gameSession.incrementShipCount(sender, ShipShape.valueOf(parts[3]));
-                    gameSession.incrementShipsPlaced(sender);
-                    sender.sendMessage(result);
-                    gameSession.switchTurn();
-                } else {
-                    sender.sendMessage(result);
-                }
-            } catch (NumberFormatException e) {
-                log.error("Error processing PLACE command: {}", message, e);
-                sender.sendMessage("FAILURE");
+            ShipShape shape = command.getShape();
+
+            if (!gameSession.canPlaceShip(sender, shape)) {
+                sender.sendMessage(Reply.FAILURE);
+                log.debug("Player {} tried to place more ships of type {} than allowed", sender.getUsername(), shape);
+                return;
+            }
+            Reply result = game.place(command.getX(), command.getY(), shape, command.getRotation(), sender);
+            if (result == Reply.SUCCESS) {
+                gameSession.recordPlace(sender, command.getX(), command.getY(), shape, command.getRotation());
+                gameSession.incrementShipCount(sender, shape);
+                gameSession.incrementShipsPlaced(sender);
+                sender.sendMessage(result);
+                gameSession.switchTurn();
+            } else {
+                sender.sendMessage(result);
             }
         } else {
-            sender.sendMessage("FAILURE");
-            log.warn("Command could not be processed: {}, it is not placement phase", message);
+            sender.sendMessage(Reply.FAILURE);
+            log.debug("Command could not be processed: {}, it is not placement phase", command);
         }
     }
 
@@ -127,8 +140,7 @@ public class Message {
      * Responds with a PONG message to the client.
      */
     private void handlePingCommand() {
-        sender.sendMessage("PONG");
-        log.info("Responded to PING with PONG");
+        sender.sendMessage(Reply.PONG);
     }
 
 
@@ -136,44 +148,41 @@ public class Message {
      * Handles the BOMB command.
      * Validates the command and executes the bombing action in the game.
      *
-     * @param game  The current game instance.
-     * @param parts The parts of the command split by spaces.
+     * @param gameSession The current game session.
+     * @param game        The current game instance.
+     * @param command     The decoded command.
      */
-    private void handleBombCommand(Game game, String[] parts) {
+    private void handleBombCommand(GameSession gameSession, Game game, Command command) {
         if (gameSession.isPlacementPhase()) {
-            log.warn("Command could not be processed: {}, it is placement phase", message);
-            sender.sendMessage("FAILURE");
+            log.debug("Command could not be processed: {}, it is placement phase", command);
+            sender.sendMessage(Reply.FAILURE);
             return;
         }
         if (gameSession.getCurrentPlayer() != gameSession.getOtherPlayer()) {
-            if (parts.length != 3) {
-                log.warn("Invalid BOMB command: {}", message);
-                sender.sendMessage("FAILURE");
+            if (command.isMalformed()) {
+                log.debug("Invalid BOMB command: {}", command);
+                sender.sendMessage(Reply.FAILURE);
                 return;
             }
-            try {
-                int x = Integer.parseInt(parts[1]);
-                int y = Integer.parseInt(parts[2]);
-                String result = game.bomb(x, y);
-                gameSession.getCurrentPlayer().sendMessage(result);
-                gameSession.getOtherPlayer().sendMessage(result);
-                gameSession.switchTurn();
-            } catch (NumberFormatException e) {
-                log.error("Error processing BOMB command: {}", message, e);
-                sender.sendMessage("FAILURE");
-            }
+            Reply result = game.bomb(command.getX(), command.getY());
+            gameSession.recordBomb(command.getX(), command.getY(), result);
+            gameSession.getCurrentPlayer().sendMessage(result);
+            gameSession.getOtherPlayer().sendMessage(result);
+            gameSession.switchTurn();
         }
     }
 
     /**
      * Handles the QUIT command.
+     *
+     * @param gameSession The current game session.
      */
-    private void handleQuitCommand() throws IOException {
+    private void handleQuitCommand(GameSession gameSession) throws IOException {
         if (sender != null) {
             log.info("Client {} is disconnecting.", sender.getUsername());
-            sender.sendMessage("QUIT");
-            gameSession.getOtherPlayerInSession(sender).sendMessage("WIN");
+            sender.sendMessage(Reply.QUIT);
+            gameSession.playerQuit(sender);
             sender.closeConnection(true);
         }
     }
-}
\ No newline at end of file
+}
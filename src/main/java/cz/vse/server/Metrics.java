@@ -0,0 +1,273 @@
+package cz.vse.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of counters, gauges and histograms, written out in the Prometheus text format.
+ * Updating a metric is a {@link LongAdder} increment, so the hot path never contends on a shared counter;
+ * the sums are only computed when the metrics are scraped.
+ * Metrics of the same name with different labels form one family, e.g. the commands counted per type.
+ */
+public class Metrics {
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * Registers a counter.
+     *
+     * @param name   the metric name
+     * @param help   the description
+     * @param labels label names and values, alternating
+     * @return the counter
+     */
+    public synchronized Counter counter(String name, String help, String... labels) {
+        return family(name, help, "counter").add(new Counter(labelsOf(labels), null));
+    }
+
+    /**
+     * Registers a counter whose value is read when the metrics are scraped.
+     *
+     * @param name  the metric name
+     * @param help  the description
+     * @param value supplies the current value, which must only go up
+     * @return the counter
+     */
+    public synchronized Counter counter(String name, String help, LongSupplier value) {
+        return family(name, help, "counter").add(new Counter("", value));
+    }
+
+    /**
+     * Registers a gauge that is moved up and down by the caller.
+     *
+     * @param name   the metric name
+     * @param help   the description
+     * @param labels label names and values, alternating
+     * @return the gauge
+     */
+    public synchronized Gauge gauge(String name, String help, String... labels) {
+        return family(name, help, "gauge").add(new Gauge(labelsOf(labels), null));
+    }
+
+    /**
+     * Registers a gauge whose value is read when the metrics are scraped.
+     *
+     * @param name  the metric name
+     * @param help  the description
+     * @param value supplies the current value
+     * @return the gauge
+     */
+    public synchronized Gauge gauge(String name, String help, DoubleSupplier value) {
+        return family(name, help, "gauge").add(new Gauge("", value));
+    }
+
+    /**
+     * Registers a histogram of durations, reported in seconds.
+     *
+     * @param name    the metric name
+     * @param help    the description
+     * @param buckets the upper bounds of the buckets in seconds, ascending
+     * @param labels  label names and values, alternating
+     * @return the histogram
+     */
+    public synchronized Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return family(name, help, "histogram").add(new Histogram(labelsOf(labels), buckets));
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     *
+     * @return the current values of all metrics
+     */
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Metric metric : family.metrics) {
+                metric.write(family.name, out);
+            }
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static String labelsOf(String[] labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder("{");
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(labels[i]).append("=\"").append(labels[i + 1]).append('"');
+        }
+        return out.append('}').toString();
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private static final class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final List<Metric> metrics = new ArrayList<>();
+
+        private Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        private <T extends Metric> T add(T metric) {
+            metrics.add(metric);
+            return metric;
+        }
+    }
+
+    private abstract static class Metric {
+        final String labels;
+
+        Metric(String labels) {
+            this.labels = labels;
+        }
+
+        abstract void write(String name, StringBuilder out);
+    }
+
+    /**
+     * A value that only goes up.
+     */
+    public static final class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+        private final LongSupplier supplier;
+
+        private Counter(String labels, LongSupplier supplier) {
+            super(labels);
+            this.supplier = supplier;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return supplier != null ? supplier.getAsLong() : value.sum();
+        }
+
+        @Override
+        void write(String name, StringBuilder out) {
+            out.append(name).append(labels).append(' ').append(get()).append('\n');
+        }
+    }
+
+    /**
+     * A value that goes up and down.
+     */
+    public static final class Gauge extends Metric {
+        private final LongAdder value = new LongAdder();
+        private final DoubleSupplier supplier;
+
+        private Gauge(String labels, DoubleSupplier supplier) {
+            super(labels);
+            this.supplier = supplier;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void decrement() {
+            value.decrement();
+        }
+
+        public double get() {
+            return supplier != null ? supplier.getAsDouble() : value.sum();
+        }
+
+        @Override
+        void write(String name, StringBuilder out) {
+            out.append(name).append(labels).append(' ').append(format(get())).append('\n');
+        }
+    }
+
+    /**
+     * Distribution of durations over fixed buckets.
+     */
+    public static final class Histogram extends Metric {
+        private final double[] buckets;
+        private final long[] bucketNanos;
+        private final LongAdder[] counts;
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram(String labels, double[] buckets) {
+            super(labels);
+            this.buckets = buckets.clone();
+            this.bucketNanos = new long[buckets.length];
+            this.counts = new LongAdder[buckets.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                bucketNanos[i] = (long) (buckets[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records one duration.
+         *
+         * @param nanos the duration in nanoseconds
+         */
+        public void observe(long nanos) {
+            int bucket = 0;
+            while (bucket < bucketNanos.length && nanos > bucketNanos[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            sumNanos.add(nanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : counts) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        @Override
+        void write(String name, StringBuilder out) {
+            String separator = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+                String bound = i < buckets.length ? format(buckets[i]) : "+Inf";
+                out.append(name).append("_bucket").append(separator).append("le=\"").append(bound).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum").append(labels).append(' ')
+                    .append(String.format(Locale.ROOT, "%.9f", sumNanos.sum() / 1e9)).append('\n');
+            out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package cz.vse.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the metrics at /metrics in the Prometheus text format, using the HTTP server built into the JDK.
+ * Scrapes are answered by a single daemon thread, so they never compete with the game for more than one core.
+ */
+public class MetricsServer {
+    private final Metrics metrics;
+    private final InetSocketAddress address;
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private HttpServer httpServer;
+    private ExecutorService executor;
+
+    public MetricsServer(Metrics metrics, String host, int port) {
+        this.metrics = metrics;
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Starts listening for scrapes.
+     *
+     * @throws IOException If the port cannot be bound
+     */
+    public void start() throws IOException {
+        httpServer = HttpServer.create(address, 0);
+        httpServer.createContext("/metrics", this::handle);
+        executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        log.info("Metrics are served on http://{}:{}/metrics", address.getHostString(), httpServer.getAddress().getPort());
+    }
+
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking connection served by a {@link NioEventLoop}.
+ * Reading and writing happen only on the loop thread, {@link #send(Reply)} may be called from any thread.
+ * A client over its line quota is throttled: the connection stops reading until the quota allows the next line,
+ * the lines already read wait in the read buffer and the rest in the socket.
+ */
+public class NioConnection implements Connection {
+    private static final int BUFFER_SIZE = 1024;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioEventLoop eventLoop;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final OutboundQueue outbound;
+    private final ServerMetrics metrics;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private ClientHandler clientHandler;
+    private boolean throttled = false; // A line waits for the quota and the channel isn't read, touched only on the loop thread
+    private volatile boolean closeRequested = false;
+    private volatile boolean overflowed = false;
+    private volatile boolean closed = false;
+    private volatile WireFormat format = WireFormat.TEXT;
+
+    public NioConnection(SocketChannel channel, SelectionKey key, NioEventLoop eventLoop, OutboundQueue outbound,
+                         ServerMetrics metrics) {
+        this.channel = channel;
+        this.key = key;
+        this.eventLoop = eventLoop;
+        this.outbound = outbound;
+        this.metrics = metrics;
+    }
+
+    void setClientHandler(ClientHandler clientHandler) {
+        this.clientHandler = clientHandler;
+    }
+
+    @Override
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public boolean supportsFormat(WireFormat format) {
+        return true;
+    }
+
+    @Override
+    public void setFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    @Override
+    public void send(Reply message) {
+        if (closed || closeRequested) {
+            return;
+        }
+        if (!outbound.offer(format.encode(message))) {
+            if (outbound.getOverflowPolicy() == OutboundQueue.OverflowPolicy.DISCONNECT) {
+                overflowed = true; // The loop disconnects the client on its next flush
+            } else {
+                log.debug("Client {} is not reading its messages, dropping: {}", clientHandler.getUsername(), message);
+                return;
+            }
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public void close() {
+        closeRequested = true;
+        scheduleFlush();
+    }
+
+    @Override
+    public void limitOutbound(int highWaterMark) {
+        outbound.restrict(highWaterMark);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed || closeRequested;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.scheduleFlush(this);
+        }
+    }
+
+    /**
+     * Reads available bytes and passes every complete line, or frame of the binary format, to the client handler.
+     * The format is looked up for every frame, as a client switches to the binary format in the middle of a read.
+     * Called on the loop thread when the channel is readable.
+     */
+    void read() {
+        if (throttled) {
+            return; // Selected before reading was paused
+        }
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            log.warn("Client {} disconnected unexpectedly: {}", clientHandler.getUsername(), e.getMessage());
+            closeChannel();
+            clientHandler.onDisconnect();
+            return;
+        }
+        if (read > 0) {
+            metrics.bytesReceived(read);
+        }
+        if (read < 0) {
+            closeChannel();
+            clientHandler.onDisconnect();
+            return;
+        }
+        processFrames();
+    }
+
+    /**
+     * Reads again once the quota allows the line the connection was throttled at.
+     * Called on the loop thread, after the delay given to {@link NioEventLoop#scheduleResume}.
+     */
+    void resume() {
+        if (!closed) {
+            processFrames();
+        }
+    }
+
+    /**
+     * Passes the complete lines in the read buffer to the client handler while the quota allows,
+     * then reads the channel again or pauses reading until the quota allows the next line.
+     */
+    private void processFrames() {
+        readBuffer.flip();
+        byte[] bytes = readBuffer.array();
+        int frameStart = readBuffer.position();
+        while (!isClosed()) {
+            WireFormat format = this.format;
+            int frameEnd = format.frameEnd(bytes, frameStart, readBuffer.limit());
+            if (frameEnd < 0) {
+                break;
+            }
+            long wait = clientHandler.acquireLine(System.nanoTime());
+            if (wait > 0) {
+                if (!throttled) {
+                    metrics.readThrottled();
+                    throttled = true;
+                }
+                eventLoop.scheduleResume(this, wait);
+                break;
+            }
+            throttled = false;
+            int start = frameStart;
+            frameStart = frameEnd;
+            try {
+                clientHandler.handleLine(bytes, format.contentStart(start), format.contentLength(bytes, start, frameEnd));
+            } catch (IOException e) {
+                log.error("Error processing message from client {}: {}", clientHandler.getUsername(), e.getMessage());
+            }
+        }
+        readBuffer.position(frameStart);
+        readBuffer.compact();
+        if (closed) {
+            return;
+        }
+        if (throttled) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } else if (!readBuffer.hasRemaining()) {
+            log.warn("Client {} sent a line longer than {} bytes, closing connection", clientHandler.getUsername(), BUFFER_SIZE);
+            metrics.lineTooLong();
+            readBuffer.clear();
+            clientHandler.onDisconnect();
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Writes as much of the outbound queue as the socket accepts.
+     * Messages are coalesced into the write buffer, so a burst of messages costs a single write call.
+     * Called on the loop thread.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        if (overflowed) {
+            log.warn("Client {} is not reading its messages, disconnecting", clientHandler);
+            metrics.clientOverflowed();
+            closeChannel();
+            clientHandler.onDisconnect();
+            return;
+        }
+        try {
+            while (true) {
+                outbound.drainTo(writeBuffer);
+                writeBuffer.flip();
+                if (!writeBuffer.hasRemaining()) {
+                    writeBuffer.clear();
+                    break;
+                }
+                metrics.bytesSent(channel.write(writeBuffer));
+                boolean socketFull = writeBuffer.hasRemaining();
+                writeBuffer.compact();
+                if (socketFull) {
+                    key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(readInterest());
+            if (closeRequested) {
+                closeChannel();
+            }
+        } catch (IOException e) {
+            log.warn("Error writing to client {}: {}", clientHandler.getUsername(), e.getMessage());
+            closeChannel();
+            clientHandler.onDisconnect();
+        }
+    }
+
+    private int readInterest() {
+        return throttled ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * Closes the underlying channel immediately, dropping unsent data.
+     */
+    void closeChannel() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+            log.debug("Closing channel for client {}", clientHandler.getUsername());
+        } catch (IOException e) {
+            log.error("Error closing channel for client {}: {}", clientHandler.getUsername(), e.getMessage());
+        }
+    }
+}
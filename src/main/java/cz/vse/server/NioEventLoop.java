@@ -0,0 +1,184 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selector thread serving a share of the non-blocking client connections.
+ * New channels, pending writes and throttled connections due to read again are handed over through queues,
+ * so other threads never touch the selector directly.
+ */
+public class NioEventLoop implements Runnable {
+    private final Server server;
+    private final Selector selector;
+    private final Queue<Registration> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingResumes = new ConcurrentLinkedQueue<>();
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private volatile boolean running = true;
+    private Thread thread;
+
+    /**
+     * A channel waiting to be registered, with the quota it was admitted with.
+     */
+    private static final class Registration {
+        private final SocketChannel channel;
+        private final ConnectionLimits.Quota quota;
+
+        private Registration(SocketChannel channel, ConnectionLimits.Quota quota) {
+            this.channel = channel;
+            this.quota = quota;
+        }
+    }
+
+    public NioEventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the loop on a new thread.
+     *
+     * @param name the name of the thread
+     */
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Hands a freshly accepted channel over to this loop.
+     *
+     * @param channel the accepted channel
+     * @param quota   the quota the channel was admitted with
+     */
+    public void register(SocketChannel channel, ConnectionLimits.Quota quota) {
+        registrations.add(new Registration(channel, quota));
+        selector.wakeup();
+    }
+
+    /**
+     * Schedules a flush of the connection's outbound queue on the loop thread.
+     *
+     * @param connection the connection with pending writes
+     */
+    void scheduleFlush(NioConnection connection) {
+        pendingFlushes.add(connection);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Lets a throttled connection read again once its quota allows, see {@link NioConnection#resume()}.
+     * The delay is kept by the server's timer, so the loop doesn't have to wake up for it.
+     *
+     * @param connection the throttled connection
+     * @param delayNanos the nanoseconds until the quota allows the next line
+     */
+    void scheduleResume(NioConnection connection, long delayNanos) {
+        server.getTimer().schedule(() -> {
+            pendingResumes.add(connection);
+            selector.wakeup();
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the loop and closes all its connections.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        log.info("Event loop {} started", Thread.currentThread().getName());
+        try {
+            while (running) {
+                selector.select();
+                processRegistrations();
+                processSelectedKeys();
+                processPendingResumes();
+                processPendingFlushes(); // Last, as reading queues replies
+            }
+        } catch (IOException e) {
+            log.error("Event loop {} failed: {}", Thread.currentThread().getName(), e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    ((NioConnection) key.attachment()).closeChannel();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.error("Error closing selector: {}", e.getMessage());
+            }
+            log.info("Event loop {} stopped", Thread.currentThread().getName());
+        }
+    }
+
+    private void processRegistrations() {
+        Registration registration;
+        while ((registration = registrations.poll()) != null) {
+            SocketChannel channel = registration.channel;
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(channel, key, this, server.newOutboundQueue(), server.getMetrics());
+                ClientHandler clientHandler = new ClientHandler(connection, server, registration.quota);
+                connection.setClientHandler(clientHandler);
+                key.attach(connection);
+                clientHandler.startIdleTimeout();
+                log.info("Client {} connected to the server", clientHandler);
+            } catch (IOException e) {
+                log.error("Error registering client channel: {}", e.getMessage());
+                registration.quota.release();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // nothing more to do with a channel we never served
+                }
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.read();
+            }
+        }
+    }
+
+    private void processPendingFlushes() {
+        NioConnection connection;
+        while ((connection = pendingFlushes.poll()) != null) {
+            connection.flush();
+        }
+    }
+
+    private void processPendingResumes() {
+        NioConnection connection;
+        while ((connection = pendingResumes.poll()) != null) {
+            connection.resume();
+        }
+    }
+}
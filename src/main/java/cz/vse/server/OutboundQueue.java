@@ -0,0 +1,104 @@
+package cz.vse.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Messages waiting to be written to one client.
+ * Any thread may offer messages, a single writer drains them into its write buffer,
+ * so a burst of messages is written with one flush and the sending thread never waits for the socket.
+ * Messages are queued already encoded, as the shared frames of a {@link Reply}, so draining is a plain copy.
+ * The queue is bounded by a high-water mark, a client that stops reading can't make the server buffer without limit.
+ */
+public class OutboundQueue {
+
+    /**
+     * What happens to a client whose queue reached the high-water mark.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The client is disconnected.
+         */
+        DISCONNECT,
+
+        /**
+         * New messages are dropped until the client catches up.
+         */
+        DROP
+    }
+
+    private final Queue<byte[]> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile int highWaterMark;
+    private volatile OverflowPolicy overflowPolicy;
+    private byte[] partial; // Message only partially copied into the write buffer, owned by the writer
+    private int partialOffset;
+
+    public OutboundQueue(int highWaterMark, OverflowPolicy overflowPolicy) {
+        this.highWaterMark = highWaterMark;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Lowers the high-water mark and disconnects the client when it is reached.
+     *
+     * @param highWaterMark the new high-water mark, ignored if higher than the current one
+     */
+    public void restrict(int highWaterMark) {
+        this.highWaterMark = Math.min(this.highWaterMark, highWaterMark);
+        this.overflowPolicy = OverflowPolicy.DISCONNECT;
+    }
+
+    /**
+     * Queues a message.
+     *
+     * @param message the encoded message including its framing, not modified by the queue
+     * @return false if the queue is at its high-water mark and the message was not queued
+     */
+    public boolean offer(byte[] message) {
+        if (pending.incrementAndGet() > highWaterMark) {
+            pending.decrementAndGet();
+            return false;
+        }
+        messages.add(message);
+        return true;
+    }
+
+    /**
+     * @return true if nothing is waiting to be written
+     */
+    public boolean isEmpty() {
+        return partial == null && messages.isEmpty();
+    }
+
+    /**
+     * Copies as many queued messages as fit into the buffer.
+     * A message that doesn't fit is continued by the following calls. Must only be called by the writer of the connection.
+     *
+     * @param buffer the write buffer in fill mode
+     */
+    public void drainTo(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (partial == null) {
+                partial = messages.poll();
+                if (partial == null) {
+                    return;
+                }
+                pending.decrementAndGet();
+                partialOffset = 0;
+            }
+            int length = Math.min(partial.length - partialOffset, buffer.remaining());
+            buffer.put(partial, partialOffset, length);
+            partialOffset += length;
+            if (partialOffset == partial.length) {
+                partial = null;
+            }
+        }
+    }
+}
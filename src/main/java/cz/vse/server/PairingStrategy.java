@@ -0,0 +1,20 @@
+package cz.vse.server;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Decides which of the waiting players play against each other.
+ * Called only from the pairing thread of the {@link Matchmaker}, so implementations need no synchronization.
+ */
+public interface PairingStrategy {
+
+    /**
+     * Pairs some of the waiting players.
+     * Paired players must be removed from the list, the others keep waiting for the next round.
+     *
+     * @param waiting the players waiting for an opponent, in the order they arrived
+     * @param onPair  receives every pair that should start a game
+     */
+    void pair(List<WaitingPlayer> waiting, BiConsumer<WaitingPlayer, WaitingPlayer> onPair);
+}
@@ -0,0 +1,114 @@
+package cz.vse.server;
+
+/**
+ * Precomputed placement masks for every ship shape, rotation and origin.
+ * For each combination the table holds the cells occupied by the ship and its halo,
+ * the cells around the ship that must stay free of other ships.
+ * Validating a placement is then one lookup and two mask intersections, see {@link Board#overlaps(int)} and {@link Board#touches(int)}.
+ */
+public final class PlacementTable {
+    public static final int ROTATIONS = 4;
+
+    private static final int OCCUPIED_LO = 0;
+    private static final int OCCUPIED_HI = 1;
+    private static final int HALO_LO = 2;
+    private static final int HALO_HI = 3;
+    private static final int STRIDE = 4;
+    private static final ShipShape[] SHAPES = ShipShape.values();
+
+    private static final long[] MASKS = new long[ShipShape.values().length * ROTATIONS * Board.CELLS * STRIDE];
+
+    static {
+        for (ShipShape shape : ShipShape.values()) {
+            for (int rotation = 0; rotation < ROTATIONS; rotation++) {
+                int[][] rotatedShape = shape.getShape(rotation);
+                for (int origin = 0; origin < Board.CELLS; origin++) {
+                    fill(placement(shape, rotation, origin), rotatedShape, origin / Board.SIZE, origin % Board.SIZE);
+                }
+            }
+        }
+    }
+
+    private PlacementTable() {
+    }
+
+    private static void fill(int placement, int[][] rotatedShape, int x, int y) {
+        long occupiedLo = 0;
+        long occupiedHi = 0;
+        long haloLo = 0;
+        long haloHi = 0;
+        for (int i = 0; i < rotatedShape.length; i++) {
+            for (int j = 0; j < rotatedShape[i].length; j++) {
+                if (rotatedShape[i][j] != 1) {
+                    continue;
+                }
+                int newX = x + i;
+                int newY = y + j;
+                if (newX >= Board.SIZE || newY >= Board.SIZE) {
+                    return; // Ship part out of bounds, the placement stays empty
+                }
+                for (int dx = -1; dx <= 1; dx++) {
+                    for (int dy = -1; dy <= 1; dy++) {
+                        int haloX = newX + dx;
+                        int haloY = newY + dy;
+                        if (haloX >= 0 && haloX < Board.SIZE && haloY >= 0 && haloY < Board.SIZE) {
+                            haloLo |= Board.lowBit(Board.cell(haloX, haloY));
+                            haloHi |= Board.highBit(Board.cell(haloX, haloY));
+                        }
+                    }
+                }
+                occupiedLo |= Board.lowBit(Board.cell(newX, newY));
+                occupiedHi |= Board.highBit(Board.cell(newX, newY));
+            }
+        }
+        MASKS[placement + OCCUPIED_LO] = occupiedLo;
+        MASKS[placement + OCCUPIED_HI] = occupiedHi;
+        MASKS[placement + HALO_LO] = haloLo & ~occupiedLo;
+        MASKS[placement + HALO_HI] = haloHi & ~occupiedHi;
+    }
+
+    private static int placement(ShipShape shape, int rotation, int origin) {
+        return ((shape.ordinal() * ROTATIONS + rotation) * Board.CELLS + origin) * STRIDE;
+    }
+
+    /**
+     * Looks up the placement of a ship.
+     *
+     * @param shape    the shape of the ship
+     * @param rotation the rotation, 0 to 3
+     * @param x        0-based x coordinate of the top left corner of the rotated shape
+     * @param y        0-based y coordinate of the top left corner of the rotated shape
+     * @return the placement handle or -1 if the rotation is unknown or the ship doesn't fit on the board
+     */
+    public static int lookup(ShipShape shape, int rotation, int x, int y) {
+        if (rotation < 0 || rotation >= ROTATIONS || x < 0 || x >= Board.SIZE || y < 0 || y >= Board.SIZE) {
+            return -1;
+        }
+        int placement = placement(shape, rotation, Board.cell(x, y));
+        return (MASKS[placement + OCCUPIED_LO] | MASKS[placement + OCCUPIED_HI]) == 0 ? -1 : placement;
+    }
+
+    /**
+     * @param placement the placement handle from {@link #lookup}
+     * @return the shape of the placed ship
+     */
+    public static ShipShape shape(int placement) {
+        return SHAPES[placement / STRIDE / Board.CELLS / ROTATIONS];
+    }
+
+    public static long occupiedLo(int placement) {
+        return MASKS[placement + OCCUPIED_LO];
+    }
+
+    public static long occupiedHi(int placement) {
+        return MASKS[placement + OCCUPIED_HI];
+    }
+
+    public static long haloLo(int placement) {
+        return MASKS[placement + HALO_LO];
+    }
+
+    public static long haloHi(int placement) {
+        return MASKS[placement + HALO_HI];
+    }
+}
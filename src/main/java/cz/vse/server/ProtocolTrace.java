@@ -0,0 +1,35 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trace of the protocol lines exchanged with clients.
+ * The lines are logged by the cz.vse.server.protocol logger at DEBUG, which is off in the production logging configuration
+ * and can be switched on at runtime, as logback rescans its configuration.
+ * Logging every line costs more than handling it, so only a sample of the connections is traced, each of them completely.
+ */
+public class ProtocolTrace {
+    static final Logger LOG = LoggerFactory.getLogger("cz.vse.server.protocol");
+
+    private final int sampleRate;
+    private final AtomicLong connections = new AtomicLong();
+
+    /**
+     * @param sampleRate n to trace every n-th connection, 0 traces none
+     */
+    public ProtocolTrace(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Decides whether a new connection is traced.
+     *
+     * @return true if the lines of the connection should be traced
+     */
+    public boolean sample() {
+        return sampleRate > 0 && connections.getAndIncrement() % sampleRate == 0;
+    }
+}
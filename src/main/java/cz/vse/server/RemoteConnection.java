@@ -0,0 +1,46 @@
+package cz.vse.server;
+
+/**
+ * Connection of a player who is connected to another node of the cluster.
+ * The session runs here, with a ClientHandler on this connection standing in for the player;
+ * everything sent to it is routed through the {@link ClusterCoordinator} to the node holding the real connection.
+ */
+public class RemoteConnection implements Connection {
+    private final ClusterCoordinator coordinator;
+    private final String localNode;
+    private final String remoteNode;
+    private final String username;
+    private volatile boolean closed = false;
+
+    public RemoteConnection(ClusterCoordinator coordinator, String localNode, String remoteNode, String username) {
+        this.coordinator = coordinator;
+        this.localNode = localNode;
+        this.remoteNode = remoteNode;
+        this.username = username;
+    }
+
+    @Override
+    public void send(Reply message) {
+        if (!closed) {
+            coordinator.sendMessage(remoteNode, localNode, username, message.toString());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            coordinator.sendClose(remoteNode, username);
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return username + "@" + remoteNode;
+    }
+}
@@ -0,0 +1,329 @@
+package cz.vse.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A message sent by the server to a client.
+ * There are only a few hundred different messages, including the result of bombing every cell,
+ * so each of them exists once and carries both of its encodings, see {@link WireFormat}.
+ * Sending a message copies one of those frames to the socket; nothing is formatted or allocated.
+ * Only the few messages about reconnecting, {@link #token(long)} and {@link #sync(int, Board, Board)},
+ * and the names of the players sent to spectators, {@link #player(int, String)}, are built when sent.
+ */
+public final class Reply {
+    private static final int BOARD_SIZE = 10;
+    private static final Map<String, Reply> BY_TEXT = new HashMap<>();
+
+    /**
+     * Kinds of messages with their opcodes in the binary format.
+     */
+    public enum Type {
+        SUCCESS(1),
+        FAILURE(2),
+        READY(3),
+        TURN(4),
+        HIT(5),
+        MISS(6),
+        WIN(7),
+        LOST(8),
+        QUIT(9),
+        PONG(10),
+        TIMEOUT(11),
+        TOKEN(12),
+        SYNC(13),
+        PLAYER(14),
+        SUNK(15);
+
+        private final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
+        }
+    }
+
+    public static final Reply SUCCESS = new Reply(Type.SUCCESS, 0, 0);
+    public static final Reply FAILURE = new Reply(Type.FAILURE, 0, 0);
+    public static final Reply READY = new Reply(Type.READY, 0, 0);
+    public static final Reply TURN = new Reply(Type.TURN, 0, 0);
+    public static final Reply WIN = new Reply(Type.WIN, 0, 0);
+    public static final Reply LOST = new Reply(Type.LOST, 0, 0);
+    public static final Reply QUIT = new Reply(Type.QUIT, 0, 0);
+    public static final Reply PONG = new Reply(Type.PONG, 0, 0);
+    public static final Reply TIMEOUT = new Reply(Type.TIMEOUT, 0, 0);
+    private static final Reply[] HITS = cells(Type.HIT);
+    private static final Reply[] MISSES = cells(Type.MISS);
+    private static final Reply[][] SUNKS = sunks();
+    private static final Reply[] TURNS = {null, new Reply(Type.TURN, 1, 0), new Reply(Type.TURN, 2, 0)};
+    private static final Reply[] WINS = {null, new Reply(Type.WIN, 1, 0), new Reply(Type.WIN, 2, 0)};
+
+    /**
+     * Phases of the game as sent by SYNC.
+     */
+    public static final int SYNC_PLACE = 1;
+    public static final int SYNC_TURN = 2;
+    public static final int SYNC_WAIT = 3;
+    private static final String[] SYNC_PHASES = {null, "PLACE", "TURN", "WAIT"};
+    private static final char[] SYNC_CELLS = {'.', 'S', 'X', 'O'};
+
+    private final Type type;
+    private final int x;
+    private final int y;
+    private final String text;
+    private final byte[] textFrame;
+    private final byte[] binaryFrame;
+
+    private Reply(Type type, int x, int y) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        this.text = x == 0 ? type.name() : y == 0 ? type.name() + " " + x : type.name() + " " + x + " " + y;
+        this.textFrame = (text + "\n").getBytes(StandardCharsets.US_ASCII);
+        this.binaryFrame = x == 0
+                ? new byte[]{1, (byte) type.code}
+                : new byte[]{2, (byte) type.code, (byte) (y == 0 ? x : x << 4 | y)};
+        BY_TEXT.put(text, this);
+    }
+
+    private Reply(Type type, String text, byte[] binaryFrame) {
+        this(type, 0, 0, text, binaryFrame);
+    }
+
+    private Reply(Type type, int x, int y, String text, byte[] binaryFrame) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        this.text = text;
+        this.textFrame = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        this.binaryFrame = binaryFrame;
+    }
+
+    private static Reply[] cells(Type type) {
+        Reply[] replies = new Reply[BOARD_SIZE * BOARD_SIZE];
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = new Reply(type, i / BOARD_SIZE + 1, i % BOARD_SIZE + 1);
+        }
+        return replies;
+    }
+
+    private static Reply[][] sunks() {
+        ShipShape[] shapes = ShipShape.values();
+        Reply[][] replies = new Reply[shapes.length][];
+        for (ShipShape shape : shapes) {
+            replies[shape.ordinal()] = new Reply[HITS.length];
+            for (int i = 0; i < HITS.length; i++) {
+                Reply hit = HITS[i];
+                String text = hit.text + "\n" + Type.SUNK.name() + " " + shape.name();
+                byte[] frame = Arrays.copyOf(hit.binaryFrame, hit.binaryFrame.length + 3);
+                frame[hit.binaryFrame.length] = 2;
+                frame[hit.binaryFrame.length + 1] = (byte) Type.SUNK.code;
+                frame[hit.binaryFrame.length + 2] = (byte) shape.ordinal();
+                replies[shape.ordinal()][i] = new Reply(Type.SUNK, hit.x, hit.y, text, frame);
+                BY_TEXT.put(text, replies[shape.ordinal()][i]);
+            }
+        }
+        return replies;
+    }
+
+    /**
+     * @param x x coordinate, from 1 to 10
+     * @param y y coordinate, from 1 to 10
+     * @return the message telling both players that the cell was hit
+     */
+    public static Reply hit(int x, int y) {
+        return HITS[(x - 1) * BOARD_SIZE + y - 1];
+    }
+
+    /**
+     * @param x x coordinate, from 1 to 10
+     * @param y y coordinate, from 1 to 10
+     * @return the message telling both players that the cell was missed
+     */
+    public static Reply miss(int x, int y) {
+        return MISSES[(x - 1) * BOARD_SIZE + y - 1];
+    }
+
+    /**
+     * The hit that sank a ship: {@code HIT <x> <y>} followed by {@code SUNK <shape>}, one message of two frames,
+     * so clients that don't know SUNK still get their HIT.
+     *
+     * @param x     x coordinate, from 1 to 10
+     * @param y     y coordinate, from 1 to 10
+     * @param shape the shape of the sunk ship
+     * @return the message telling both players that the cell was hit and the ship in it sunk
+     */
+    public static Reply sunk(int x, int y, ShipShape shape) {
+        return SUNKS[shape.ordinal()][(x - 1) * BOARD_SIZE + y - 1];
+    }
+
+    /**
+     * @param player 1 for the first player, 2 for the second one
+     * @return the message telling spectators whose turn it is
+     */
+    public static Reply turnOf(int player) {
+        return TURNS[player];
+    }
+
+    /**
+     * @param player 1 for the first player, 2 for the second one
+     * @return the message telling spectators who won
+     */
+    public static Reply winOf(int player) {
+        return WINS[player];
+    }
+
+    /**
+     * Tells a spectator the name of a player, in the binary format as UTF-8 after the number of the player.
+     *
+     * @param player   1 for the first player, 2 for the second one
+     * @param username the username of the player
+     * @return the message with the player's name
+     */
+    public static Reply player(int player, String username) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(name.length, 252);
+        byte[] frame = new byte[3 + length];
+        frame[0] = (byte) (frame.length - 1);
+        frame[1] = (byte) Type.PLAYER.code;
+        frame[2] = (byte) player;
+        System.arraycopy(name, 0, frame, 3, length);
+        return new Reply(Type.PLAYER, Type.PLAYER.name() + " " + player + " " + username, frame);
+    }
+
+    /**
+     * Joins messages into one, sent with a single copy into the outbound queue.
+     *
+     * @param replies the messages, in the order they are sent
+     * @return the message standing for all of them, of the type of the last one
+     */
+    static Reply batch(List<Reply> replies) {
+        StringBuilder text = new StringBuilder();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        for (Reply reply : replies) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(reply.text);
+            binary.write(reply.binaryFrame, 0, reply.binaryFrame.length);
+        }
+        return new Reply(replies.get(replies.size() - 1).type, text.toString(), binary.toByteArray());
+    }
+
+    /**
+     * The token a player presents with {@code RESUME} to get back into the session after losing the connection.
+     * Sent as 16 hex digits, or as 8 bytes in the binary format.
+     *
+     * @param token the resume token of the player
+     * @return the message telling the player the token
+     */
+    public static Reply token(long token) {
+        byte[] frame = new byte[10];
+        frame[0] = 9;
+        frame[1] = (byte) Type.TOKEN.code;
+        for (int i = 0; i < 8; i++) {
+            frame[2 + i] = (byte) (token >>> (56 - 8 * i));
+        }
+        return new Reply(Type.TOKEN, Type.TOKEN.name() + " " + String.format("%016x", token), frame);
+    }
+
+    /**
+     * The whole state of the game as seen by a player who just came back: the phase and both boards.
+     * In the text format the boards are 100 characters each, cell {@code x * 10 + y} of the 0-based coordinates,
+     * {@code .} water, {@code S} ship, {@code X} hit and {@code O} miss; the opponent's ships are never shown.
+     * In the binary format the phase is a byte and each board takes 25 bytes, four cells of two bits per byte, in the same order.
+     *
+     * @param phase    {@link #SYNC_PLACE}, {@link #SYNC_TURN} or {@link #SYNC_WAIT}
+     * @param own      the board of the player
+     * @param opponent the board of the opponent
+     * @return the message with the state of the game
+     */
+    public static Reply sync(int phase, Board own, Board opponent) {
+        StringBuilder text = new StringBuilder(220).append(Type.SYNC.name())
+                .append(' ').append(SYNC_PHASES[phase]).append(' ');
+        byte[] frame = new byte[3 + 2 * Board.CELLS / 4];
+        frame[0] = (byte) (frame.length - 1);
+        frame[1] = (byte) Type.SYNC.code;
+        frame[2] = (byte) phase;
+        for (int board = 0; board < 2; board++) {
+            for (int cell = 0; cell < Board.CELLS; cell++) {
+                int state = board == 0 ? cellState(own, cell, true) : cellState(opponent, cell, false);
+                text.append(SYNC_CELLS[state]);
+                frame[3 + board * Board.CELLS / 4 + cell / 4] |= (byte) (state << (cell % 4 * 2));
+            }
+            if (board == 0) {
+                text.append(' ');
+            }
+        }
+        return new Reply(Type.SYNC, text.toString(), frame);
+    }
+
+    private static int cellState(Board board, int cell, boolean showShips) {
+        if (board.isHit(cell)) {
+            return 2;
+        }
+        if (board.isMissed(cell)) {
+            return 3;
+        }
+        return showShips && board.isShip(cell) ? 1 : 0;
+    }
+
+    /**
+     * Looks up a message by its text, for messages that crossed a node boundary as text.
+     *
+     * @param text the message as sent by the text protocol, without the line terminator
+     * @return the message
+     * @throws IllegalArgumentException If no message has this text
+     */
+    public static Reply valueOf(String text) {
+        Reply reply = BY_TEXT.get(text);
+        if (reply == null) {
+            throw new IllegalArgumentException("Unknown message: " + text);
+        }
+        return reply;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the x coordinate of HIT, SUNK and MISS, the player of the TURN and WIN sent to spectators, 0 for other messages
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return the y coordinate of HIT, SUNK and MISS, 0 for other messages
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * @return the line of the text format including the line terminator, must not be modified
+     */
+    byte[] getTextFrame() {
+        return textFrame;
+    }
+
+    /**
+     * @return the frame of the binary format including the length prefix, must not be modified
+     */
+    byte[] getBinaryFrame() {
+        return binaryFrame;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
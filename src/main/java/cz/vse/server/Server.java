@@ -1,158 +1,763 @@
 package cz.vse.server;
 
+import ch.qos.logback.classic.LoggerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class represents the server that listens for incoming client connections.
  * It manages the game sessions and handles client interactions.
  */
 public class Server {
+    private static final long DRAIN_REPORT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long DRAIN_POLL_MILLIS = 100;
     private final int port;
-
-
-
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
-    private final ConcurrentLinkedQueue<ClientHandler> waitingClients = new ConcurrentLinkedQueue<>();
+    private final ServerConfig config;
+    private final ExecutorService threadPool;
+    private final Matchmaker matchmaker;
+    private final ExecutorService sessionPool;
+    private final TimingWheel timer;
+    private final ProtocolTrace protocolTrace;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final GamePool gamePool;
+    private final ConnectionLimits limits;
+    private MetricsServer metricsServer;
+    private final ClusterMember cluster; // Only set when the server is a node of a cluster
+    private final GameJournal journal; // Null if no journal is kept
+    private final ServerSnapshot snapshot; // Null if no snapshots are taken
+    private final Map<String, GameSession> parked = new ConcurrentHashMap<>(); // Username to the session waiting for the player to resume
+    private final Map<String, GameSession> sessions = new ConcurrentHashMap<>(); // Username to the running session, for spectators
     private final Logger log = LoggerFactory.getLogger(this.getClass());
     private final Set<String> activeUsernames = ConcurrentHashMap.newKeySet();
-    private boolean running = true;
+    private volatile boolean running = true;
+    private volatile Closeable listener; // The server socket, closed to stop accepting
+    private NioEventLoop[] eventLoops = new NioEventLoop[0];
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicInteger bots = new AtomicInteger();
 
 
     public Server(int port) {
+        this(port, new ServerConfig(new Properties()));
+    }
+
+    public Server(int port, ServerConfig config) {
+        this(port, config, null, null);
+    }
+
+    /**
+     * Creates a node of a cluster, sharing usernames and the matchmaking queue with the other nodes.
+     *
+     * @param port        the port to listen on
+     * @param config      the configuration
+     * @param coordinator the coordinator of the cluster, null for a standalone server
+     * @param nodeId      the id of this node, unique in the cluster
+     */
+    public Server(int port, ServerConfig config, ClusterCoordinator coordinator, String nodeId) {
         this.port = port;
+        this.config = config;
+        this.threadPool = newConnectionExecutor(config.getTransport());
+        this.sessionPool = Executors.newFixedThreadPool(config.getSessionThreads(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "session-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.protocolTrace = new ProtocolTrace(config.getProtocolTraceSampleRate());
+        this.timer = new TimingWheel(config.getTimerTickMillis(), TimeUnit.MILLISECONDS, 512);
+        this.matchmaker = new Matchmaker(config.getPairingStrategy(), this::startGameSession, config.getMatchmakingBatchSize(),
+                metrics, this::startBotGame, TimeUnit.SECONDS.toNanos(config.getBotAfterSeconds()));
+        metrics.register(matchmaker);
+        this.gamePool = new GamePool(config.getGamePoolSize(),
+                config.getBoardSlabGames() > 0 ? new BoardSlab(config.getBoardSlabGames()) : null);
+        metrics.register(gamePool);
+        this.limits = new ConnectionLimits(config.getMaxConnections(), config.getMaxConnectionsPerAddress(),
+                config.getLinesPerSecond(), config.getLineBurst(),
+                config.getAddressLinesPerSecond(), config.getAddressLineBurst(), metrics);
+        this.cluster = coordinator != null ? new ClusterMember(this, coordinator, nodeId) : null;
+        String journalDirectory = config.getJournalDirectory();
+        this.journal = journalDirectory.isEmpty() ? null : new GameJournal(
+                nodeId != null ? Paths.get(journalDirectory, nodeId) : Paths.get(journalDirectory),
+                config.getJournalSegmentBytes(), config.getJournalSyncMillis(), metrics);
+        String snapshotDirectory = config.getSnapshotDirectory();
+        this.snapshot = snapshotDirectory.isEmpty() ? null : new ServerSnapshot(
+                nodeId != null ? Paths.get(snapshotDirectory, nodeId) : Paths.get(snapshotDirectory),
+                config.getSnapshotIntervalSeconds(), this::runningSessions, metrics);
+    }
+
+    /**
+     * Creates the executor running the blocking ClientHandlers.
+     * Virtual threads are looked up reflectively, so the server still builds and runs on Java 17
+     * and falls back to platform threads there.
+     *
+     * @param transport the configured transport
+     * @return the executor for connection tasks
+     */
+    private ExecutorService newConnectionExecutor(TransportMode transport) {
+        if (transport == TransportMode.VIRTUAL) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads require Java 21 or newer, falling back to platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
     }
 
     /**
      * Main method to start the server.
      * It accepts a port number as an argument; if not provided, it takes the port number from config.properties file.
+     * All other settings are always taken from config.properties.
      * @param args Command line arguments
      */
     public static void main(String[] args) throws IOException {
-        int port = 0; // Default port
+        ServerConfig config = ServerConfig.load();
+        int port = config.getPort();
         if (args.length > 0) {
             try {
                 port = Integer.parseInt(args[0]);
-                Server server = new Server(port);
-                server.start();
             } catch (NumberFormatException e) {
-                System.err.println("Invalid port number. Using default port 9091.");
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                System.err.println("Invalid port number. Using port " + port + " from config.properties.");
             }
         }
 
-        //TODO timeout
+        int nodes = config.getLocalClusterNodes();
+        if (nodes > 1) {
+            startLocalCluster(port, config, nodes);
+            return;
+        }
 
-        if (args.length == 0) {
-            InputStream config = Server.class.getClassLoader().getResourceAsStream("config.properties");
-            if (config == null) {
-                throw new RuntimeException("Failed to load config.properties");
-            }
+        Server server = new Server(port, config);
+        drainOnShutdown(server);
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.err.println("Error starting the server: " + e.getMessage());
+        }
+    }
 
-            Properties properties = new Properties();
-            properties.load(config);
-            port = Integer.parseInt(properties.getProperty("server.port", "9091"));
-            config.close();
+    /**
+     * Drains the servers when the JVM is asked to stop, e.g. by SIGTERM, then stops logging.
+     * Logback has no shutdown hook of its own, as it would stop logging while the servers drain.
+     *
+     * @param servers the servers running in this JVM
+     */
+    private static void drainOnShutdown(Server... servers) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Thread[] drains = new Thread[servers.length];
+            for (int i = 0; i < servers.length; i++) {
+                drains[i] = new Thread(servers[i]::drain, "drain-" + i);
+                drains[i].start();
+            }
+            for (Thread drain : drains) {
+                try {
+                    drain.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (LoggerFactory.getILoggerFactory() instanceof LoggerContext) {
+                ((LoggerContext) LoggerFactory.getILoggerFactory()).stop();
+            }
+        }, "shutdown"));
+    }
 
-            Server server = new Server(port);
+    /**
+     * Starts several nodes in this JVM, sharing a {@link LocalClusterCoordinator}.
+     * The nodes listen on consecutive ports starting at the given one, and so do their metrics endpoints.
+     *
+     * @param port   the port of the first node
+     * @param config the configuration of all nodes
+     * @param nodes  the number of nodes
+     */
+    private static void startLocalCluster(int port, ServerConfig config, int nodes) {
+        ClusterCoordinator coordinator = new LocalClusterCoordinator();
+        Thread[] threads = new Thread[nodes];
+        Server[] servers = new Server[nodes];
+        for (int i = 0; i < nodes; i++) {
+            ServerConfig nodeConfig = config.getMetricsPort() > 0
+                    ? config.with("metrics.port", String.valueOf(config.getMetricsPort() + i))
+                    : config;
+            Server server = new Server(port + i, nodeConfig, coordinator, "node-" + i);
+            servers[i] = server;
+            threads[i] = new Thread(() -> {
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    System.err.println("Error starting the server: " + e.getMessage());
+                }
+            }, "node-" + i);
+            threads[i].start();
+        }
+        drainOnShutdown(servers);
+        for (Thread thread : threads) {
             try {
-                server.start();
-            } catch (IOException e) {
-                System.err.println("Error starting the server: " + e.getMessage());
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
         }
     }
 
     /**
      * Starts the server and listens for incoming client connections.
-     * When a client connects, it creates a new ClientHandler to manage the connection.
+     * The transport serving the connections is chosen by the server.transport property.
      *
      * @throws IOException If an I/O error occurs when opening the socket
      */
     public void start() throws IOException {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            log.info("Server is listening for connections on port: {}", port);
-
-            while (running) {
-                Socket clientSocket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                threadPool.execute(clientHandler);
+        timer.start();
+        matchmaker.start();
+        if (cluster != null) {
+            cluster.join();
+        }
+        try {
+            if (journal != null) {
+                recoverSessions();
+            }
+            if (snapshot != null) {
+                restoreSnapshot();
+                snapshot.start();
+            }
+            if (config.getMetricsPort() > 0) {
+                metricsServer = new MetricsServer(metrics.getRegistry(), config.getMetricsHost(), config.getMetricsPort());
+                metricsServer.start();
+            }
+            if (config.getTransport() == TransportMode.NIO) {
+                startNio();
+            } else {
+                startBlocking();
             }
         } catch (IOException e) {
             log.error("Error starting the server: {}", e.getMessage());
             throw e;
         } finally {
             log.info("Server has stopped listening for connections.");
-            closeAllConnections();
             running = false;
+            if (!draining.get()) {
+                closeAllConnections();
+            }
+        }
+    }
+
+    /**
+     * Accepts connections on a blocking server socket.
+     * When a client connects, it creates a new ClientHandler running on its own thread,
+     * unless the client is over the {@link ConnectionLimits}.
+     *
+     * @throws IOException If an I/O error occurs when opening the socket
+     */
+    private void startBlocking() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            listener = serverSocket;
+            log.info("Server is listening for connections on port: {}", port);
+
+            while (running) {
+                Socket clientSocket;
+                try {
+                    clientSocket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (!running) {
+                        break; // Closed by drain()
+                    }
+                    throw e;
+                }
+                metrics.connectionAccepted();
+                ConnectionLimits.Quota quota = limits.admit(clientSocket.getInetAddress());
+                if (quota == null) {
+                    log.debug("Connection from {} is over the limits, closing", clientSocket.getInetAddress());
+                    closeQuietly(clientSocket);
+                    continue;
+                }
+                ClientHandler clientHandler = new ClientHandler(clientSocket, this, quota);
+                threadPool.execute(clientHandler);
+            }
+        }
+    }
+
+    /**
+     * Accepts connections on a server socket channel and spreads them over a few selector threads.
+     * No thread is bound to a single connection, so idle clients cost only their buffers.
+     *
+     * @throws IOException If an I/O error occurs when opening the socket
+     */
+    private void startNio() throws IOException {
+        eventLoops = new NioEventLoop[config.getNioThreads()];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new NioEventLoop(this);
+            eventLoops[i].start("nio-loop-" + i);
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            listener = serverChannel;
+            log.info("Server is listening for connections on port: {} with {} event loops", port, eventLoops.length);
+
+            int next = 0;
+            while (running) {
+                SocketChannel clientChannel;
+                try {
+                    clientChannel = serverChannel.accept();
+                } catch (IOException e) {
+                    if (!running) {
+                        break; // Closed by drain()
+                    }
+                    throw e;
+                }
+                metrics.connectionAccepted();
+                ConnectionLimits.Quota quota = limits.admit(clientChannel.socket().getInetAddress());
+                if (quota == null) {
+                    log.debug("Connection from {} is over the limits, closing", clientChannel.socket().getInetAddress());
+                    closeQuietly(clientChannel);
+                    continue;
+                }
+                eventLoops[next].register(clientChannel, quota);
+                next = (next + 1) % eventLoops.length;
+            }
+        }
+    }
+
+    private void closeQuietly(Closeable rejected) {
+        try {
+            rejected.close();
+        } catch (IOException ignored) {
+            // nothing more to do with a connection we never served
+        }
+    }
+
+    /**
+     * Rebuilds the sessions the previous run didn't finish from the journal.
+     * Their players are placeholders, keeping the usernames, until they resume with the tokens they got before the crash;
+     * a session whose players don't all come back in time is abandoned.
+     *
+     * @throws IOException If the journal cannot be opened
+     */
+    private void recoverSessions() throws IOException {
+        for (GameJournal.SessionLog sessionLog : journal.open()) {
+            ClientHandler player1 = placeholder(sessionLog.getPlayer1());
+            ClientHandler player2 = placeholder(sessionLog.getPlayer2());
+            GameSession session = new GameSession(player1, player2, sessionPool, timer, config, metrics, journal, sessionLog.getId());
+            session.replay(sessionLog);
+            recovered(session, player1, player2);
+        }
+    }
+
+    /**
+     * Warm starts the sessions in the snapshot of the previous run, the same way as {@link #recoverSessions()}.
+     * Sessions the journal accounts for are skipped, the journal being more recent:
+     * they were recovered from it already, or they ended after the snapshot was taken.
+     *
+     * @throws IOException If the snapshot cannot be read
+     */
+    private void restoreSnapshot() throws IOException {
+        long start = System.nanoTime();
+        int restored = 0;
+        for (ServerSnapshot.Entry entry : snapshot.read()) {
+            if (journal != null && journal.accountsFor(entry.getId())) {
+                continue;
+            }
+            ClientHandler player1 = placeholder(entry.getPlayer1());
+            ClientHandler player2 = placeholder(entry.getPlayer2());
+            GameSession session = new GameSession(player1, player2, sessionPool, timer, config, metrics, journal, 0);
+            try {
+                session.restore(entry.getState());
+            } catch (RuntimeException e) {
+                log.warn("Skipping the session of {} and {} in the snapshot, its state is damaged", entry.getPlayer1(), entry.getPlayer2());
+                session.discard();
+                continue;
+            }
+            if (recovered(session, player1, player2)) {
+                session.journalRestored();
+                restored++;
+            }
+        }
+        log.info("Restored {} sessions from the snapshot in {} ms", restored, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private ClientHandler placeholder(String username) {
+        ClientHandler player = new ClientHandler(new DetachedConnection(), this);
+        player.setUsername(username);
+        return player;
+    }
+
+    /**
+     * Waits for the players of a recovered session to resume.
+     * A session that won't run gives its game back, and the username of the first player if it was claimed.
+     *
+     * @return false if the session is over or a player is already taken by another session
+     */
+    private boolean recovered(GameSession session, ClientHandler player1, ClientHandler player2) {
+        if (session.isFinished() || !claim(player1)) {
+            session.discard();
+            return false;
         }
+        if (!claim(player2)) {
+            removeActiveUser(player1);
+            session.discard();
+            return false;
+        }
+        park(player1.getUsername(), session);
+        park(player2.getUsername(), session);
+        sessions.put(player1.getUsername(), session);
+        sessions.put(player2.getUsername(), session);
+        metrics.sessionRecovered();
+        timer.schedule(session::abandonIfDetached, config.getJournalReconnectSeconds(), TimeUnit.SECONDS);
+        log.info("Recovered session {} between {} and {}", session.getId(), player1.getUsername(), player2.getUsername());
+        return true;
     }
 
     /**
-     * Adds a client to the waiting list and starts a game session if there are two players.
+     * Creates the outbound queue of a new connection as configured.
+     *
+     * @return an empty outbound queue
+     */
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.getOutboundHighWaterMark(), config.getOutboundOverflowPolicy());
+    }
+
+    /**
+     * Returns the executor running the flush tasks of blocking connections.
+     * It is the same executor that runs their readers, so virtual threads are used for writing too when configured.
+     *
+     * @return the writer executor
+     */
+    Executor getWriterExecutor() {
+        return threadPool;
+    }
+
+    /**
+     * Claims the client's username and puts the client into the matchmaking lobby.
+     * The game session is started later by the matchmaker's pairing thread,
+     * or by the cluster on the node of the first player when the server is a node of a cluster.
+     * The username of a player whose session is parked stays taken until the player resumes or the session ends.
      *
      * @param client The client to be added
      */
-    public synchronized void addWaitingClient(ClientHandler client) throws IOException {
+    public void addWaitingClient(ClientHandler client) throws IOException {
         String username = client.getUsername();
-        if (activeUsernames.contains(username)) {
+        if (draining.get()) {
+            log.info("Rejecting {}, the server is shutting down", username);
+            client.closeConnection(false);
+            return;
+        }
+        if (!claim(client)) {
             log.warn("Username '{}' is already in use. Rejecting client connection.", username);
-            client.sendMessage("QUIT");
+            client.sendMessage(Reply.QUIT);
             client.closeConnection(false);
             return;
         }
+        enqueue(client);
+    }
+
+    private boolean claim(ClientHandler client) {
+        return cluster != null ? cluster.claim(client) : activeUsernames.add(client.getUsername());
+    }
+
+    /**
+     * Keeps a session for a player who lost the connection, until the player resumes or the session ends.
+     *
+     * @param username the username of the player
+     * @param session  the session
+     */
+    void park(String username, GameSession session) {
+        parked.put(username, session);
+    }
+
+    void unpark(String username, GameSession session) {
+        parked.remove(username, session);
+    }
+
+    /**
+     * Takes the parked session of a player who presented the right resume token.
+     *
+     * @param username the username the client presented
+     * @param token    the resume token the client presented
+     * @return the session to reattach the client to, null if there is none or the token is wrong
+     */
+    GameSession takeParkedSession(String username, long token) {
+        GameSession session = parked.get(username);
+        if (session == null || !session.acceptsToken(username, token) || !parked.remove(username, session)) {
+            return null;
+        }
+        return session;
+    }
 
-        activeUsernames.add(username);
-        waitingClients.add(client);
-        if (waitingClients.size() >= 2) {
-            ClientHandler player1 = waitingClients.poll();
-            ClientHandler player2 = waitingClients.poll();
+    /**
+     * Lets a client watch the game of a player running on this server.
+     *
+     * @param spectator the client
+     * @param username  the username of one of the players
+     * @return false if the player isn't playing on this server
+     */
+    boolean watch(ClientHandler spectator, String username) {
+        GameSession session = sessions.get(username);
+        if (session == null) {
+            return false;
+        }
+        spectator.watch(session, config.getSpectatorQueueSize());
+        return true;
+    }
 
-            // Create a new GameSession
-            GameSession gameSession = new GameSession(player1, player2);
+    /**
+     * Forgets a finished session, it can't be watched anymore.
+     *
+     * @param username the username of a player of the session
+     * @param session  the session
+     */
+    void forgetSession(String username, GameSession session) {
+        sessions.remove(username, session);
+    }
 
-            // Assign the GameSession to both players
-            player1.setGameSession(gameSession);
-            log.info("{} has been assigned to the game session", player1.getUsername());
-            player2.setGameSession(gameSession);
-            log.info("{} has been assigned to the game session", player2.getUsername());
+    /**
+     * Hands the username of a player over to the connection the player resumed on.
+     *
+     * @param previous the lost connection or the placeholder of a recovered session
+     * @param client   the new connection
+     */
+    void transferUsername(ClientHandler previous, ClientHandler client) {
+        if (cluster != null) {
+            cluster.transfer(previous, client);
+        }
+    }
 
-            // Start the game session
-            gameSession.start();
-            log.info("Game session started between {} and {}", player1.getUsername(), player2.getUsername());
+    /**
+     * Puts a logged in client into the matchmaking lobby.
+     *
+     * @param client The client looking for an opponent
+     */
+    void enqueue(ClientHandler client) {
+        if (cluster != null) {
+            cluster.enqueue(client);
+        } else {
+            matchmaker.enqueue(client);
         }
     }
 
-    public synchronized void removeActiveUser (ClientHandler client) {
+    /**
+     * Creates and starts a game session for a pair of players chosen by the matchmaker or the cluster.
+     *
+     * @param player1 The first player
+     * @param player2 The second player
+     */
+    void startGameSession(ClientHandler player1, ClientHandler player2) {
+        // Create a new GameSession
+        GameSession gameSession = new GameSession(player1, player2, sessionPool, timer, config, metrics, journal, 0);
+
+        sessions.put(player1.getUsername(), gameSession);
+        sessions.put(player2.getUsername(), gameSession);
+
+        // Assign the GameSession to both players
+        player1.setGameSession(gameSession);
+        log.debug("{} has been assigned to the game session", player1.getUsername());
+        player2.setGameSession(gameSession);
+        log.debug("{} has been assigned to the game session", player2.getUsername());
+
+        // Start the game session
+        gameSession.start();
+        log.info("Game session started between {} and {}", player1.getUsername(), player2.getUsername());
+    }
+
+    /**
+     * Starts a game session of a player against the server's bot, which plays through a {@link BotConnection}.
+     * The bot claims its username like any player, taking the next number while a player already holds one.
+     *
+     * @param player the player who waited too long for a human opponent
+     */
+    void startBotGame(ClientHandler player) {
+        BotConnection connection = new BotConnection();
+        ClientHandler bot = new ClientHandler(connection, this);
+        connection.attach(bot);
+        do {
+            bot.setUsername("bot-" + bots.incrementAndGet());
+        } while (!claim(bot));
+        bot.setLoggedIn(true);
+        startGameSession(player, bot);
+    }
+
+    /**
+     * Returns the wheel all idle, placement and turn timeouts are scheduled on.
+     *
+     * @return the server's timing wheel
+     */
+    TimingWheel getTimer() {
+        return timer;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    ProtocolTrace getProtocolTrace() {
+        return protocolTrace;
+    }
+
+    int getIdleTimeoutSeconds() {
+        return config.getIdleTimeoutSeconds();
+    }
+
+    /**
+     * Returns the pool recycling the games of finished sessions.
+     *
+     * @return the server's game pool
+     */
+    GamePool getGamePool() {
+        return gamePool;
+    }
+
+    public Matchmaker getMatchmaker() {
+        return matchmaker;
+    }
+
+    /**
+     * @return the server's membership in a cluster, null for a standalone server
+     */
+    ClusterMember getCluster() {
+        return cluster;
+    }
+
+    public void removeActiveUser (ClientHandler client) {
         String username = client.getUsername();
-        log.debug("Active users before: {}", activeUsernames);
+        if (cluster != null) {
+            cluster.release(client);
+            return;
+        }
         if (activeUsernames.remove(username)) {
-            log.info("Removed active user: {}", username);
-            log.debug("Active users after: {}", activeUsernames);
-
+            log.debug("Removed active user: {}", username);
         } else {
             log.warn("Attempted to remove non-existent user: {}", username);
         }
     }
 
+    /**
+     * Shuts the server down without cutting off the games in progress, so servers can be replaced one by one.
+     * The server stops accepting connections and pairing players, then waits up to server.drainSeconds
+     * for the running sessions to finish, logging how many are left. Sessions still running then are handed off:
+     * their players are disconnected and, if a journal or snapshots are kept, the next run recovers the sessions
+     * for the players to resume.
+     * Called by the shutdown hook, so stopping the process with SIGTERM drains it.
+     */
+    public void drain() {
+        if (closed.get() || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        metrics.drainStarted();
+        running = false;
+        Closeable socket = listener;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.error("Error closing the server socket: {}", e.getMessage());
+            }
+        }
+        try {
+            for (ClientHandler client : matchmaker.shutdown()) {
+                client.closeConnection(false);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getDrainSeconds());
+            long nextReport = System.nanoTime();
+            for (int remaining; (remaining = runningSessions().size()) > 0 && System.nanoTime() < deadline; ) {
+                if (System.nanoTime() >= nextReport) {
+                    log.info("Draining: {} sessions still running, {} s left", remaining,
+                            TimeUnit.NANOSECONDS.toSeconds(deadline - System.nanoTime()));
+                    nextReport += DRAIN_REPORT_NANOS;
+                }
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            }
+            Set<GameSession> unfinished = runningSessions();
+            if (!unfinished.isEmpty()) {
+                if (journal != null || snapshot != null) {
+                    log.warn("Handing off {} unfinished sessions to the next run", unfinished.size());
+                } else {
+                    log.warn("Cutting off {} unfinished sessions, no journal or snapshot is kept", unfinished.size());
+                }
+            }
+            if (snapshot != null) {
+                // The last snapshot holds the sessions as they are handed off and none of those that finished
+                snapshot.close();
+                try {
+                    snapshot.writeHandingOff(unfinished);
+                } catch (IOException e) {
+                    log.error("Error writing the last snapshot: {}", e.getMessage());
+                }
+            }
+            if (!unfinished.isEmpty()) {
+                for (GameSession session : unfinished) {
+                    session.handOff(); // Those already handed off with the snapshot stay as they are
+                }
+                // The sessions hang up in their mailboxes
+                for (long end = System.nanoTime() + DRAIN_REPORT_NANOS; !sessions.isEmpty() && System.nanoTime() < end; ) {
+                    Thread.sleep(DRAIN_POLL_MILLIS);
+                }
+            }
+            log.info("Drained");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("Error draining the server: {}", e.getMessage());
+        }
+        try {
+            closeAllConnections();
+        } catch (IOException e) {
+            log.error("Error closing connections: {}", e.getMessage());
+        }
+    }
+
+    private Set<GameSession> runningSessions() {
+        return new HashSet<>(sessions.values());
+    }
+
     /**
      * Closes all connections and shuts down the server.
      * This method is called when the server is shutting down.
      */
-    public synchronized void closeAllConnections() throws IOException {
-        for (ClientHandler client : waitingClients) {
+    public void closeAllConnections() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        for (ClientHandler client : matchmaker.shutdown()) {
             client.closeConnection(false);
         }
-        waitingClients.clear();
         activeUsernames.clear();
+        if (cluster != null) {
+            cluster.leave();
+        }
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+        timer.shutdown();
+        if (journal != null) {
+            journal.close();
+        }
+        if (snapshot != null) {
+            snapshot.close();
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
         threadPool.shutdown();
+        sessionPool.shutdown();
         try {
             if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
                 threadPool.shutdownNow();
@@ -0,0 +1,377 @@
+package cz.vse.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * This class holds the server configuration loaded from the config.properties file.
+ * Every value has a default, so a missing key never prevents the server from starting.
+ */
+public class ServerConfig {
+    private final Properties properties;
+
+    public ServerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Loads the configuration from the config.properties file on the classpath.
+     *
+     * @return the loaded configuration
+     * @throws IOException If the file cannot be read
+     */
+    public static ServerConfig load() throws IOException {
+        try (InputStream config = Server.class.getClassLoader().getResourceAsStream("config.properties")) {
+            if (config == null) {
+                throw new RuntimeException("Failed to load config.properties");
+            }
+            Properties properties = new Properties();
+            properties.load(config);
+            return new ServerConfig(properties);
+        }
+    }
+
+    public int getPort() {
+        return getInt("server.port", 9091);
+    }
+
+    /**
+     * Returns the transport used to serve client connections.
+     *
+     * @return the transport mode, blocking by default
+     */
+    public TransportMode getTransport() {
+        String value = getString("server.transport", TransportMode.BLOCKING.name());
+        return TransportMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the number of selector threads used by the NIO transport.
+     *
+     * @return the number of event loops, at least one
+     */
+    public int getNioThreads() {
+        return Math.max(1, getInt("server.nio.threads", 2));
+    }
+
+    /**
+     * Returns the number of threads of the pool shared by all game session mailboxes.
+     *
+     * @return the number of session threads, the number of processors by default
+     */
+    public int getSessionThreads() {
+        return Math.max(1, getInt("server.session.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Returns how long a shutting down server waits for the games in progress to finish.
+     * Games still running then are left to the next run, which recovers them if a journal is kept.
+     *
+     * @return the deadline in seconds, 0 doesn't wait
+     */
+    public int getDrainSeconds() {
+        return Math.max(0, getInt("server.drainSeconds", 60));
+    }
+
+    /**
+     * Returns how many games of finished sessions are kept for reuse by new sessions.
+     *
+     * @return the capacity of the game pool, 0 disables the pool
+     */
+    public int getGamePoolSize() {
+        return Math.max(0, getInt("server.gamePoolSize", 256));
+    }
+
+    /**
+     * Returns how many running games keep their boards off the heap, in one slab allocated at startup.
+     *
+     * @return the number of slots of the board slab, 0 keeps all boards on the heap
+     */
+    public int getBoardSlabGames() {
+        return Math.max(0, getInt("server.boardSlab.games", 0));
+    }
+
+    /**
+     * Returns the maximum number of messages queued for a client that doesn't read them.
+     *
+     * @return the high-water mark of outbound queues
+     */
+    public int getOutboundHighWaterMark() {
+        return Math.max(1, getInt("server.outbound.highWaterMark", 1024));
+    }
+
+    /**
+     * Returns what happens to a client whose outbound queue is full.
+     *
+     * @return the overflow policy, disconnect by default
+     */
+    public OutboundQueue.OverflowPolicy getOutboundOverflowPolicy() {
+        String value = getString("server.outbound.overflowPolicy", OutboundQueue.OverflowPolicy.DISCONNECT.name());
+        return OutboundQueue.OverflowPolicy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return the maximum number of client connections, 0 for no limit
+     */
+    public int getMaxConnections() {
+        return Math.max(0, getInt("limits.maxConnections", 10000));
+    }
+
+    /**
+     * Returns the maximum number of client connections from one remote address.
+     * Players behind one NAT, and load generators, share an address.
+     *
+     * @return the maximum number of connections from one address, 0 for no limit
+     */
+    public int getMaxConnectionsPerAddress() {
+        return Math.max(0, getInt("limits.maxConnectionsPerAddress", 0));
+    }
+
+    /**
+     * @return the steady rate of lines a client may send per second, 0 for no limit
+     */
+    public int getLinesPerSecond() {
+        return Math.max(0, getInt("limits.linesPerSecond", 50));
+    }
+
+    /**
+     * @return the number of lines a client may send at once
+     */
+    public int getLineBurst() {
+        return Math.max(1, getInt("limits.lineBurst", 100));
+    }
+
+    /**
+     * @return the steady rate of lines all clients from one remote address may send per second, 0 for no limit
+     */
+    public int getAddressLinesPerSecond() {
+        return Math.max(0, getInt("limits.addressLinesPerSecond", 0));
+    }
+
+    /**
+     * @return the number of lines all clients from one remote address may send at once
+     */
+    public int getAddressLineBurst() {
+        return Math.max(1, getInt("limits.addressLineBurst", 200));
+    }
+
+    /**
+     * Returns the strategy the matchmaker uses to pair waiting players.
+     *
+     * @return the pairing strategy, FIFO by default
+     */
+    public PairingStrategy getPairingStrategy() {
+        String value = getString("matchmaking.strategy", "FIFO").trim().toUpperCase(Locale.ROOT);
+        switch (value) {
+            case "FIFO":
+                return new FifoPairingStrategy();
+            default:
+                throw new IllegalArgumentException("Unknown matchmaking strategy: " + value);
+        }
+    }
+
+    /**
+     * Returns the maximum number of players the matchmaker takes from the lobby in one round.
+     *
+     * @return the batch size, at least two
+     */
+    public int getMatchmakingBatchSize() {
+        return Math.max(2, getInt("matchmaking.batchSize", 256));
+    }
+
+    /**
+     * Returns how long a player waits for a human opponent before the matchmaker pairs the player with the server's bot.
+     * Servers in a cluster never pair players with the bot.
+     *
+     * @return the wait in seconds, 0 disables the bot
+     */
+    public int getBotAfterSeconds() {
+        return Math.max(0, getInt("matchmaking.botAfterSeconds", 0));
+    }
+
+    /**
+     * Returns how long a client may stay silent before it is disconnected.
+     *
+     * @return the idle timeout in seconds, 0 disables it
+     */
+    public int getIdleTimeoutSeconds() {
+        return Math.max(0, getInt("timeout.idleSeconds", 60));
+    }
+
+    /**
+     * Returns how long a player may take to place all ships.
+     *
+     * @return the placement timeout in seconds, 0 disables it
+     */
+    public int getPlacementTimeoutSeconds() {
+        return Math.max(0, getInt("timeout.placementSeconds", 300));
+    }
+
+    /**
+     * Returns how long a player may take to bomb when it is his turn.
+     *
+     * @return the turn timeout in seconds, 0 disables it
+     */
+    public int getTurnTimeoutSeconds() {
+        return Math.max(0, getInt("timeout.turnSeconds", 60));
+    }
+
+    /**
+     * Returns what happens to a player who doesn't bomb in time.
+     *
+     * @return the turn timeout policy, forfeit by default
+     */
+    public GameSession.TurnTimeoutPolicy getTurnTimeoutPolicy() {
+        String value = getString("timeout.turnPolicy", GameSession.TurnTimeoutPolicy.FORFEIT.name());
+        return GameSession.TurnTimeoutPolicy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns how long the session of a player who lost the connection is kept for the player to come back.
+     *
+     * @return the grace period in seconds, 0 ends the game as soon as the connection is lost
+     */
+    public int getReconnectGraceSeconds() {
+        return Math.max(0, getInt("timeout.reconnectSeconds", 30));
+    }
+
+    /**
+     * Returns how many messages may wait for a spectator. A spectator who falls further behind is disconnected.
+     *
+     * @return the high-water mark of the outbound queues of spectators
+     */
+    public int getSpectatorQueueSize() {
+        return Math.max(1, getInt("spectator.queueSize", 64));
+    }
+
+    /**
+     * Returns the duration of one tick of the timing wheel, which is the precision of all timeouts.
+     *
+     * @return the tick duration in milliseconds
+     */
+    public int getTimerTickMillis() {
+        return Math.max(1, getInt("timeout.tickMillis", 100));
+    }
+
+    /**
+     * Returns which connections are traced when the cz.vse.server.protocol logger is at DEBUG.
+     *
+     * @return n to trace every n-th connection, 1 traces all of them and 0 none
+     */
+    public int getProtocolTraceSampleRate() {
+        return Math.max(0, getInt("logging.protocol.sampleRate", 1));
+    }
+
+    /**
+     * Returns the port of the HTTP endpoint serving the metrics.
+     *
+     * @return the metrics port, 0 if the metrics are not served
+     */
+    public int getMetricsPort() {
+        return Math.max(0, getInt("metrics.port", 0));
+    }
+
+    /**
+     * Returns the address the metrics endpoint listens on.
+     *
+     * @return the metrics host, only the local machine by default
+     */
+    public String getMetricsHost() {
+        return getString("metrics.host", "127.0.0.1").trim();
+    }
+
+    /**
+     * Returns the directory of the game journal. Nodes of a local cluster keep their journals in subdirectories named by node.
+     *
+     * @return the directory, empty if no journal is kept
+     */
+    public String getJournalDirectory() {
+        return getString("journal.directory", "").trim();
+    }
+
+    /**
+     * @return the size of a journal segment file in bytes
+     */
+    public int getJournalSegmentBytes() {
+        return Math.max(4096, getInt("journal.segmentBytes", 64 * 1024 * 1024));
+    }
+
+    /**
+     * Returns how often the journal is forced to the disk. All records written meanwhile share one sync.
+     *
+     * @return the sync interval in milliseconds
+     */
+    public int getJournalSyncMillis() {
+        return Math.max(1, getInt("journal.syncMillis", 50));
+    }
+
+    /**
+     * Returns the directory of the snapshots of the running sessions. Nodes of a local cluster keep their snapshots
+     * in subdirectories named by node.
+     *
+     * @return the directory, empty if no snapshots are taken
+     */
+    public String getSnapshotDirectory() {
+        return getString("snapshot.directory", "").trim();
+    }
+
+    /**
+     * @return the seconds between two snapshots of the running sessions
+     */
+    public int getSnapshotIntervalSeconds() {
+        return Math.max(1, getInt("snapshot.intervalSeconds", 10));
+    }
+
+    /**
+     * Returns how long the players of a session recovered from the journal or the snapshot have to resume.
+     *
+     * @return the seconds the players of a recovered session have to resume
+     */
+    public int getJournalReconnectSeconds() {
+        return Math.max(1, getInt("journal.reconnectSeconds", 120));
+    }
+
+    /**
+     * Returns how many nodes of a cluster the server starts in one JVM, sharing a {@link LocalClusterCoordinator}.
+     *
+     * @return the number of nodes, 1 for a standalone server
+     */
+    public int getLocalClusterNodes() {
+        return Math.max(1, getInt("cluster.localNodes", 1));
+    }
+
+    /**
+     * Returns a copy of this configuration with one property changed.
+     *
+     * @param key   the property
+     * @param value the new value
+     * @return the changed copy
+     */
+    public ServerConfig with(String key, String value) {
+        Properties copy = new Properties();
+        copy.putAll(properties);
+        copy.setProperty(key, value);
+        return new ServerConfig(copy);
+    }
+
+    public String getString(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,259 @@
+package cz.vse.server;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The metrics the server reports about itself, registered in one {@link Metrics} registry.
+ * Components report through the methods of this class, so the metric names live in one place.
+ */
+public class ServerMetrics {
+    private static final double[] COMMAND_BUCKETS = {
+            0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 1
+    };
+    private static final double[] GAME_BUCKETS = {10, 30, 60, 120, 300, 600, 1200, 1800, 3600};
+    private static final double[] WAIT_BUCKETS = {0.1, 0.5, 1, 2, 5, 10, 30, 60, 120, 300};
+
+    private final Metrics registry = new Metrics();
+    private final Metrics.Counter connectionsAccepted = registry.counter(
+            "battleships_connections_accepted_total", "Client connections accepted");
+    private final Metrics.Gauge clientsActive = registry.gauge(
+            "battleships_clients_active", "Connected clients");
+    private final Metrics.Gauge sessionsActive = registry.gauge(
+            "battleships_sessions_active", "Game sessions in progress");
+    private final Metrics.Counter sessionsStarted = registry.counter(
+            "battleships_sessions_started_total", "Game sessions started");
+    private final Metrics.Histogram gameDuration = registry.histogram(
+            "battleships_game_duration_seconds", "Duration of finished game sessions", GAME_BUCKETS);
+    private final Metrics.Counter matches = registry.counter(
+            "battleships_matchmaking_matches_total", "Pairs made by the matchmaker");
+    private final Metrics.Counter botMatches = registry.counter(
+            "battleships_matchmaking_bot_matches_total", "Players the matchmaker paired with the bot");
+    private final Metrics.Histogram matchmakingWait = registry.histogram(
+            "battleships_matchmaking_wait_seconds", "Time a paired player waited for the opponent", WAIT_BUCKETS);
+    private final Map<Message.COMMAND, Metrics.Counter> commands = new EnumMap<>(Message.COMMAND.class);
+    private final Metrics.Counter unknownCommands = registry.counter(
+            "battleships_commands_total", "Commands received by type", "type", "UNKNOWN");
+    private final Map<Message.COMMAND, Metrics.Histogram> commandLatency = new EnumMap<>(Message.COMMAND.class);
+    private final Metrics.Histogram unknownCommandLatency;
+    private final Metrics.Counter bytesIn = registry.counter(
+            "battleships_bytes_received_total", "Bytes received from clients");
+    private final Metrics.Counter bytesOut = registry.counter(
+            "battleships_bytes_sent_total", "Bytes sent to clients");
+    private final Metrics.Counter connectionsOverServerLimit = registry.counter(
+            "battleships_connections_rejected_total", "Connections closed when accepted for being over a limit", "limit", "server");
+    private final Metrics.Counter connectionsOverAddressLimit = registry.counter(
+            "battleships_connections_rejected_total", "Connections closed when accepted for being over a limit", "limit", "address");
+    private final Metrics.Counter readsThrottled = registry.counter(
+            "battleships_reads_throttled_total", "Times reading from a client paused because it was over its line rate");
+    private final Metrics.Counter linesTooLong = registry.counter(
+            "battleships_lines_too_long_total", "Clients disconnected for sending a line longer than the read buffer");
+    private final Metrics.Counter clientsOverflowed = registry.counter(
+            "battleships_clients_overflowed_total", "Clients disconnected for not reading their messages");
+    private final Metrics.Gauge spectatorsActive = registry.gauge(
+            "battleships_spectators_active", "Spectators watching a game session");
+    private final Metrics.Counter journalBytes = registry.counter(
+            "battleships_journal_bytes_total", "Bytes appended to the game journal");
+    private final Metrics.Histogram journalSyncs = registry.histogram(
+            "battleships_journal_sync_duration_seconds", "Time to force a batch of journal records to the disk", COMMAND_BUCKETS);
+    private final Metrics.Counter sessionsHandedOff = registry.counter(
+            "battleships_sessions_handed_off_total", "Game sessions left unfinished for the next run when the server shut down");
+    private final Metrics.Gauge draining = registry.gauge(
+            "battleships_server_draining", "1 while the server drains before shutting down");
+    private final Metrics.Counter sessionsRecovered = registry.counter(
+            "battleships_sessions_recovered_total", "Unfinished game sessions rebuilt from the journal or the snapshot on startup");
+    private final Metrics.Histogram snapshots = registry.histogram(
+            "battleships_snapshot_duration_seconds", "Time to capture the running sessions and write a snapshot", COMMAND_BUCKETS);
+    private final Metrics.Counter snapshotSessions = registry.counter(
+            "battleships_snapshot_sessions_total", "Game sessions written to snapshots");
+    private final Metrics.Counter snapshotBytes = registry.counter(
+            "battleships_snapshot_bytes_total", "Bytes written to snapshots");
+    private final Metrics.Counter playersParked = registry.counter(
+            "battleships_players_parked_total", "Players who lost the connection during a game, their session kept for them");
+    private final Metrics.Counter playersResumed = registry.counter(
+            "battleships_players_resumed_total", "Players who got back into their session with RESUME");
+
+    public ServerMetrics() {
+        for (Message.COMMAND type : Message.COMMAND.values()) {
+            commands.put(type, registry.counter(
+                    "battleships_commands_total", "Commands received by type", "type", type.name()));
+        }
+        for (Message.COMMAND type : Message.COMMAND.values()) {
+            commandLatency.put(type, registry.histogram("battleships_command_duration_seconds",
+                    "Time to process a command in its game session", COMMAND_BUCKETS, "type", type.name()));
+        }
+        unknownCommandLatency = registry.histogram("battleships_command_duration_seconds",
+                "Time to process a command in its game session", COMMAND_BUCKETS, "type", "UNKNOWN");
+    }
+
+    /**
+     * Registers the metrics of the matchmaker, read whenever the metrics are scraped.
+     *
+     * @param matchmaker the matchmaker
+     */
+    public void register(Matchmaker matchmaker) {
+        registry.gauge("battleships_matchmaking_queue_depth", "Players waiting for an opponent", matchmaker::getQueueDepth);
+    }
+
+    /**
+     * Registers the metrics of the game pool, read whenever the metrics are scraped.
+     *
+     * @param pool the game pool
+     */
+    public void register(GamePool pool) {
+        registry.gauge("battleships_game_pool_idle", "Games of finished sessions waiting in the pool", pool::getIdle);
+        registry.counter("battleships_game_pool_misses_total", "Games created because the pool was empty", pool::getMisses);
+        registry.gauge("battleships_game_pool_hit_ratio", "Share of sessions that got a recycled game", pool::getHitRatio);
+        BoardSlab slab = pool.getSlab();
+        if (slab != null) {
+            registry.gauge("battleships_board_slab_slots", "Games the off-heap board slab holds", slab::getCapacity);
+            registry.gauge("battleships_board_slab_used", "Slots of the board slab taken by running games", slab::getUsed);
+            registry.counter("battleships_board_slab_full_total", "Games that kept their boards on the heap because the slab was full",
+                    pool::getSlabFull);
+        }
+    }
+
+    public Metrics getRegistry() {
+        return registry;
+    }
+
+    public void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    public void clientConnected() {
+        clientsActive.increment();
+    }
+
+    public void clientDisconnected() {
+        clientsActive.decrement();
+    }
+
+    public void sessionStarted() {
+        sessionsStarted.increment();
+        sessionsActive.increment();
+    }
+
+    /**
+     * @param durationNanos the time from the start of the session to its end
+     */
+    public void sessionFinished(long durationNanos) {
+        sessionsActive.decrement();
+        gameDuration.observe(durationNanos);
+    }
+
+    /**
+     * @param wait1Nanos the time the first player waited for the opponent
+     * @param wait2Nanos the time the second player waited for the opponent
+     */
+    public void playersMatched(long wait1Nanos, long wait2Nanos) {
+        matches.increment();
+        matchmakingWait.observe(wait1Nanos);
+        matchmakingWait.observe(wait2Nanos);
+    }
+
+    /**
+     * @param waitNanos the time the player waited for a human opponent before getting the bot
+     */
+    public void botMatched(long waitNanos) {
+        botMatches.increment();
+        matchmakingWait.observe(waitNanos);
+    }
+
+    /**
+     * @param type the command type, null if the command is unknown
+     */
+    public void commandReceived(Message.COMMAND type) {
+        (type == null ? unknownCommands : commands.get(type)).increment();
+    }
+
+    /**
+     * @param type  the command type, null if the command is unknown
+     * @param nanos the time it took to process the command
+     */
+    public void commandProcessed(Message.COMMAND type, long nanos) {
+        (type == null ? unknownCommandLatency : commandLatency.get(type)).observe(nanos);
+    }
+
+    public void bytesReceived(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void bytesSent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void connectionOverServerLimit() {
+        connectionsOverServerLimit.increment();
+    }
+
+    public void connectionOverAddressLimit() {
+        connectionsOverAddressLimit.increment();
+    }
+
+    public void readThrottled() {
+        readsThrottled.increment();
+    }
+
+    public void lineTooLong() {
+        linesTooLong.increment();
+    }
+
+    public void clientOverflowed() {
+        clientsOverflowed.increment();
+    }
+
+    public void spectatorJoined() {
+        spectatorsActive.increment();
+    }
+
+    public void spectatorLeft() {
+        spectatorsActive.decrement();
+    }
+
+    public void journalAppended(long bytes) {
+        journalBytes.add(bytes);
+    }
+
+    /**
+     * @param nanos the time it took to force the batch to the disk
+     */
+    public void journalSynced(long nanos) {
+        journalSyncs.observe(nanos);
+    }
+
+    /**
+     * Counts a session that was still running when the server stopped waiting for the games to finish.
+     */
+    public void sessionHandedOff() {
+        sessionsActive.decrement();
+        sessionsHandedOff.increment();
+    }
+
+    public void drainStarted() {
+        draining.increment();
+    }
+
+    /**
+     * @param sessions the number of sessions in the snapshot
+     * @param bytes    the size of the snapshot
+     * @param nanos    the time it took to capture the sessions and write the snapshot
+     */
+    public void snapshotWritten(int sessions, long bytes, long nanos) {
+        snapshots.observe(nanos);
+        snapshotSessions.add(sessions);
+        snapshotBytes.add(bytes);
+    }
+
+    public void sessionRecovered() {
+        sessionsRecovered.increment();
+    }
+
+    public void playerParked() {
+        playersParked.increment();
+    }
+
+    public void playerResumed() {
+        playersResumed.increment();
+    }
+}
@@ -0,0 +1,282 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Periodic snapshots of all running game sessions, for a warm start of the next run.
+ * <p>
+ * The snapshot thread asks every session to capture its state in its own mailbox, see {@link GameSession#snapshot()},
+ * so each session is captured between two of its commands and only waits for itself: nothing stops the world.
+ * The records are written to a new file, forced to the disk and renamed over the previous snapshot,
+ * so a crash while writing leaves the previous snapshot whole.
+ * The file is {@code [magic: 4][sessions: 4]} followed by a record per session,
+ * {@code [length: 4][session id: 4][name1 length: 1][name1][name2 length: 1][name2][state]},
+ * the session id being the one in the journal, 0 if the session isn't journaled.
+ * <p>
+ * On startup, {@link #read()} maps the latest snapshot and returns the sessions in it, to be restored.
+ */
+public class ServerSnapshot {
+    private static final int MAGIC = 0x42535332; // "BSS2"
+    private static final String FILE = "snapshot.bin";
+    private static final String TEMPORARY_FILE = "snapshot.tmp";
+    private static final long CAPTURE_TIMEOUT_MILLIS = 1000;
+
+    private final Path directory;
+    private final long intervalNanos;
+    private final Supplier<Collection<GameSession>> sessions;
+    private final ServerMetrics metrics;
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private Thread writer;
+    private volatile boolean running;
+
+    /**
+     * A session read from the snapshot.
+     */
+    public static final class Entry {
+        private final int id;
+        private final String player1;
+        private final String player2;
+        private final ByteBuffer state;
+
+        private Entry(int id, String player1, String player2, ByteBuffer state) {
+            this.id = id;
+            this.player1 = player1;
+            this.player2 = player2;
+            this.state = state;
+        }
+
+        /**
+         * @return the id of the session in the journal of the previous run, 0 if it wasn't journaled
+         */
+        public int getId() {
+            return id;
+        }
+
+        public String getPlayer1() {
+            return player1;
+        }
+
+        public String getPlayer2() {
+            return player2;
+        }
+
+        /**
+         * @return the state for {@link GameSession#restore(ByteBuffer)}
+         */
+        public ByteBuffer getState() {
+            return state;
+        }
+    }
+
+    /**
+     * @param directory       the directory of the snapshot file
+     * @param intervalSeconds the seconds between two snapshots
+     * @param sessions        supplies the running sessions
+     * @param metrics         the metrics the snapshots are reported to
+     */
+    public ServerSnapshot(Path directory, int intervalSeconds, Supplier<Collection<GameSession>> sessions, ServerMetrics metrics) {
+        this.directory = directory;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        this.sessions = sessions;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Maps the snapshot left by the previous run and reads the sessions in it.
+     * A snapshot cut short is read up to the last whole record.
+     *
+     * @return the sessions, empty if there is no snapshot
+     * @throws IOException If the snapshot cannot be read
+     */
+    public List<Entry> read() throws IOException {
+        Path file = directory.resolve(FILE);
+        List<Entry> entries = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return entries;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                log.warn("Ignoring {}, it isn't a snapshot", file);
+                return entries;
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                ByteBuffer record = buffer.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                int id = record.getInt();
+                String player1 = name(record);
+                String player2 = name(record);
+                entries.add(new Entry(id, player1, player2, record.slice()));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            log.warn("Snapshot {} is cut short, read {} sessions", file, entries.size());
+        }
+        return entries;
+    }
+
+    private static String name(ByteBuffer record) {
+        byte[] name = new byte[record.get() & 0xFF];
+        record.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts the thread taking a snapshot every interval.
+     *
+     * @throws IOException If the directory cannot be created
+     */
+    public void start() throws IOException {
+        Files.createDirectories(directory);
+        running = true;
+        writer = new Thread(this::writeLoop, "snapshot");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("Snapshots of the running sessions are taken every {} s in {}",
+                TimeUnit.NANOSECONDS.toSeconds(intervalNanos), directory);
+    }
+
+    private void writeLoop() {
+        while (running) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+                if (running) {
+                    write();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                log.error("Error writing a snapshot: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of the running sessions and replaces the previous one with it.
+     * A session whose mailbox is busy for longer than a second is left out.
+     *
+     * @return the number of sessions in the snapshot
+     * @throws IOException          If the snapshot cannot be written
+     * @throws InterruptedException If interrupted while the sessions capture their state
+     */
+    public int write() throws IOException, InterruptedException {
+        return write(sessions.get(), GameSession::snapshot);
+    }
+
+    /**
+     * Takes the last snapshot of a server shutting down and hands off the sessions, see {@link GameSession#handOff()}.
+     * Each session is captured and handed off in the same task of its mailbox, so no command slips in between.
+     * Sessions finished by then are left out, the snapshot replacing the previous one holds no finished session.
+     * A session whose mailbox is busy for longer than a second is left out of the snapshot, it is handed off later.
+     *
+     * @param running the sessions to hand off
+     * @return the number of sessions in the snapshot
+     * @throws IOException          If the snapshot cannot be written
+     * @throws InterruptedException If interrupted while the sessions capture their state
+     */
+    public int writeHandingOff(Collection<GameSession> running) throws IOException, InterruptedException {
+        return write(running, GameSession::snapshotAndHandOff);
+    }
+
+    private synchronized int write(Collection<GameSession> sessions, Function<GameSession, byte[]> capture)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        List<GameSession> running = new ArrayList<>(sessions);
+        AtomicReferenceArray<byte[]> states = new AtomicReferenceArray<>(running.size());
+        AtomicReferenceArray<String[]> players = new AtomicReferenceArray<>(running.size());
+        int[] ids = new int[running.size()];
+        CountDownLatch captured = new CountDownLatch(running.size());
+        for (int i = 0; i < running.size(); i++) {
+            GameSession session = running.get(i);
+            int index = i;
+            ids[i] = session.getId();
+            session.execute(() -> {
+                states.set(index, capture.apply(session));
+                players.set(index, new String[]{session.getPlayer1().getUsername(), session.getPlayer2().getUsername()});
+                captured.countDown();
+            });
+        }
+        if (!captured.await(CAPTURE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            log.warn("{} sessions didn't capture their state in time, they are left out of the snapshot", captured.getCount());
+        }
+
+        List<byte[]> records = new ArrayList<>(running.size());
+        int bytes = 8;
+        for (int i = 0; i < running.size(); i++) {
+            byte[] state = states.get(i);
+            String[] names = players.get(i);
+            if (state == null || names == null) {
+                continue; // Finished, or not captured in time
+            }
+            byte[] name1 = names[0].getBytes(StandardCharsets.UTF_8);
+            byte[] name2 = names[1].getBytes(StandardCharsets.UTF_8);
+            int length1 = Math.min(name1.length, 255);
+            int length2 = Math.min(name2.length, 255);
+            ByteBuffer record = ByteBuffer.allocate(6 + length1 + length2 + state.length);
+            record.putInt(ids[i]);
+            record.put((byte) length1).put(name1, 0, length1);
+            record.put((byte) length2).put(name2, 0, length2);
+            record.put(state);
+            records.add(record.array());
+            bytes += 4 + record.capacity();
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(bytes);
+        out.putInt(MAGIC);
+        out.putInt(records.size());
+        for (byte[] record : records) {
+            out.putInt(record.length);
+            out.put(record);
+        }
+        out.flip();
+        Path temporary = directory.resolve(TEMPORARY_FILE);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        metrics.snapshotWritten(records.size(), bytes, System.nanoTime() - start);
+        log.debug("Snapshot of {} sessions written, {} bytes", records.size(), bytes);
+        return records.size();
+    }
+
+    /**
+     * Stops the snapshot thread. The last snapshot stays for the next run.
+     */
+    public void close() {
+        running = false;
+        Thread thread = writer;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serial executor of one game session.
+ * Tasks run one at a time in submission order, so the session state has a single writer and needs no locks,
+ * while the tasks of all sessions share one pool and progress in parallel.
+ * <p>
+ * A caller finding the mailbox idle may run its task inline with {@link #tryEnter()} and {@link #exit()},
+ * which spares the hand-over to the pool for the common uncontended case.
+ */
+public class SessionMailbox implements Executor {
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final Executor pool;
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    public SessionMailbox(Executor pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (running.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Takes the mailbox over for running a task on the calling thread.
+     * Fails if another task is running or waiting, so tasks never overtake each other.
+     *
+     * @return true if the caller owns the mailbox and must call {@link #exit()} afterwards
+     */
+    public boolean tryEnter() {
+        return tasks.isEmpty() && running.compareAndSet(false, true);
+    }
+
+    /**
+     * Releases the mailbox taken by {@link #tryEnter()}, scheduling tasks submitted meanwhile.
+     */
+    public void exit() {
+        running.set(false);
+        if (!tasks.isEmpty() && running.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        try {
+            pool.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            drain(); // The pool is shutting down, the last tasks run on the caller
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Error processing game session task: {}", e.getMessage(), e);
+                }
+            }
+            running.set(false);
+            if (tasks.isEmpty() || !running.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package cz.vse.server;
 
+/**
+ * Shapes of the ships a player can place.
+ * Each shape is a 2D array where 1 marks a cell occupied by the ship.
+ */
 public enum ShipShape {
     SIX_SHAPE(new int[][]{
             {1, 1, 1, 1},
@@ -28,4 +32,27 @@ public enum ShipShape {
     public int[][] getShape() {
         return shape;
     }
+
+    /**
+     * Rotates the shape of the ship based on the rotation parameter.
+     * The rotation can be 0 (no rotation), 1 (90 degrees clockwise), 2 (180 degrees), 3 (270 degrees clockwise).
+     * A new array is allocated for every call, so this is meant for precomputation only, see {@link PlacementTable}.
+     * @param rotation the rotation parameter
+     * @return the rotated shape of the ship
+     */
+    public int[][] getShape(int rotation) {
+        int[][] rotatedShape = shape;
+        for (int r = 0; r < rotation; r++) { // 90 degrees clockwise per step
+            int rows = rotatedShape.length;
+            int cols = rotatedShape[0].length;
+            int[][] next = new int[cols][rows];
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < cols; j++) {
+                    next[j][rows - 1 - i] = rotatedShape[i][j];
+                }
+            }
+            rotatedShape = next;
+        }
+        return rotatedShape;
+    }
 }
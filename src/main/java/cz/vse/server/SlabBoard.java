@@ -0,0 +1,117 @@
+package cz.vse.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A board keeping its state in a {@link BoardSlab}. The object is only a view: the buffer of the slab
+ * and the offset of the board in it, so a game can move its boards to another slot by binding the views again.
+ * Layout of a board, {@link #BYTES} long:
+ * <pre>
+ *   0  6 layers, a long each
+ *  48  number of ships, an int
+ *  52  ship cells not hit yet, an int
+ *  56  ship of every cell plus one, a byte each
+ * 156  cells of every ship not hit yet, a byte each
+ * 206  placement handle of every ship, a short each
+ * </pre>
+ */
+public class SlabBoard extends Board {
+    private static final int SHIPS = LAYERS * Long.BYTES;
+    private static final int CELLS_LEFT = SHIPS + Integer.BYTES;
+    private static final int SHIP_AT = CELLS_LEFT + Integer.BYTES;
+    private static final int SHIP_CELLS_LEFT = SHIP_AT + CELLS;
+    private static final int PLACEMENTS = SHIP_CELLS_LEFT + MAX_SHIPS;
+
+    /**
+     * The bytes a board takes in a slab, rounded up to whole longs.
+     */
+    static final int BYTES = (PLACEMENTS + MAX_SHIPS * Short.BYTES + Long.BYTES - 1) & -Long.BYTES;
+
+    private final ByteBuffer buffer;
+    private int base;
+
+    /**
+     * @param buffer the buffer of the slab
+     * @param base   the offset of the board in the buffer
+     */
+    SlabBoard(ByteBuffer buffer, int base) {
+        this.buffer = buffer;
+        this.base = base;
+    }
+
+    /**
+     * Points the view at another board of the slab.
+     *
+     * @param base the offset of the board in the buffer
+     */
+    void bind(int base) {
+        this.base = base;
+    }
+
+    @Override
+    public void clear() {
+        for (int offset = 0; offset < BYTES; offset += Long.BYTES) {
+            buffer.putLong(base + offset, 0L);
+        }
+    }
+
+    @Override
+    long layer(int layer) {
+        return buffer.getLong(base + layer * Long.BYTES);
+    }
+
+    @Override
+    void setLayer(int layer, long bits) {
+        buffer.putLong(base + layer * Long.BYTES, bits);
+    }
+
+    @Override
+    int shipAt(int cell) {
+        return buffer.get(base + SHIP_AT + cell);
+    }
+
+    @Override
+    void setShipAt(int cell, int ship) {
+        buffer.put(base + SHIP_AT + cell, (byte) ship);
+    }
+
+    @Override
+    int placement(int ship) {
+        return buffer.getShort(base + PLACEMENTS + ship * Short.BYTES);
+    }
+
+    @Override
+    void setPlacement(int ship, int placement) {
+        buffer.putShort(base + PLACEMENTS + ship * Short.BYTES, (short) placement);
+    }
+
+    @Override
+    int shipCellsLeft(int ship) {
+        return buffer.get(base + SHIP_CELLS_LEFT + ship);
+    }
+
+    @Override
+    void setShipCellsLeft(int ship, int cells) {
+        buffer.put(base + SHIP_CELLS_LEFT + ship, (byte) cells);
+    }
+
+    @Override
+    int ships() {
+        return buffer.getInt(base + SHIPS);
+    }
+
+    @Override
+    void setShips(int ships) {
+        buffer.putInt(base + SHIPS, ships);
+    }
+
+    @Override
+    int cellsLeft() {
+        return buffer.getInt(base + CELLS_LEFT);
+    }
+
+    @Override
+    void setCellsLeft(int cells) {
+        buffer.putInt(base + CELLS_LEFT, cells);
+    }
+}
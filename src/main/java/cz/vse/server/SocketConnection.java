@@ -0,0 +1,232 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Blocking connection backed by a plain socket.
+ * The owning thread reads lines with {@link #readLine()}, any thread may send.
+ * Lines, or frames of the binary protocol, are framed directly in a reusable byte buffer, so reading creates no garbage.
+ * Sent messages are queued and written by a flush task on the writer executor,
+ * which coalesces everything queued so far into a single write.
+ */
+public class SocketConnection implements Connection {
+    private static final int BUFFER_SIZE = 1024;
+
+    private final Socket socket;
+    private final OutboundQueue outbound;
+    private final Executor writer;
+    private final ServerMetrics metrics;
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean closeRequested = false;
+    private volatile WireFormat format = WireFormat.TEXT;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int start; // First unread byte in the buffer
+    private int end; // End of the data in the buffer
+    private int lineStart;
+    private int lineLength;
+    private OutputStream out;
+    private InputStream in;
+
+    public SocketConnection(Socket socket, OutboundQueue outbound, Executor writer, ServerMetrics metrics) {
+        this.socket = socket;
+        this.outbound = outbound;
+        this.writer = writer;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Opens the input and output streams of the socket.
+     * Must be called before the first read or send.
+     *
+     * @throws IOException If the streams cannot be opened
+     */
+    public void open() throws IOException {
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+    }
+
+    /**
+     * Blocks until a full line, or a full frame with the binary format, is received.
+     * The line can then be found in {@link #getBuffer()} and stays there until the next call.
+     *
+     * @return true if a line was received, false if the client closed the connection
+     * @throws IOException If reading fails or the line doesn't fit into the buffer
+     */
+    public boolean readLine() throws IOException {
+        while (true) {
+            WireFormat format = this.format;
+            int frameEnd = format.frameEnd(buffer, start, end);
+            if (frameEnd >= 0) {
+                lineStart = format.contentStart(start);
+                lineLength = format.contentLength(buffer, start, frameEnd);
+                start = frameEnd;
+                return true;
+            }
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (end == buffer.length) {
+                metrics.lineTooLong();
+                throw new IOException("Line longer than " + BUFFER_SIZE + " bytes");
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                return false;
+            }
+            metrics.bytesReceived(read);
+            end += read;
+        }
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLineStart() {
+        return lineStart;
+    }
+
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    @Override
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public boolean supportsFormat(WireFormat format) {
+        return true;
+    }
+
+    @Override
+    public void setFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    @Override
+    public void send(Reply message) {
+        if (closeRequested) {
+            return;
+        }
+        if (!outbound.offer(format.encode(message))) {
+            if (outbound.getOverflowPolicy() == OutboundQueue.OverflowPolicy.DISCONNECT) {
+                log.warn("Client {} is not reading its messages, disconnecting", socket.getRemoteSocketAddress());
+                metrics.clientOverflowed();
+                closeSocket(); // The reading thread fails and cleans up
+            } else {
+                log.debug("Client {} is not reading its messages, dropping: {}", socket.getRemoteSocketAddress(), message);
+            }
+            return;
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public void limitOutbound(int highWaterMark) {
+        outbound.restrict(highWaterMark);
+    }
+
+    @Override
+    public void close() {
+        closeRequested = true;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                closeSocket(); // Server is shutting down
+            }
+        }
+    }
+
+    /**
+     * Writes everything queued so far, then closes the socket if the connection was closed meanwhile.
+     * Runs on the writer executor, at most one flush per connection at a time.
+     */
+    private void flush() {
+        try {
+            while (true) {
+                outbound.drainTo(writeBuffer);
+                if (writeBuffer.position() > 0) {
+                    out.write(writeBuffer.array(), 0, writeBuffer.position());
+                    metrics.bytesSent(writeBuffer.position());
+                    writeBuffer.clear();
+                    continue;
+                }
+                flushScheduled.set(false);
+                if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                    break;
+                }
+            }
+            if (closeRequested) {
+                closeSocket();
+            }
+        } catch (IOException e) {
+            log.warn("Error writing to {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+            closeSocket();
+        }
+    }
+
+    private void closeSocket() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        // Close input stream
+        if (in != null) {
+            try {
+                in.close();
+                log.debug("Closing InputStream for {}", socket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                log.error("Error closing input stream for {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+            }
+        }
+
+        // Close output stream
+        if (out != null) {
+            try {
+                out.close();
+                log.debug("Closing OutputStream for {}", socket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                log.error("Error closing output stream for {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+            }
+        }
+
+        // Close socket
+        if (!socket.isClosed()) {
+            try {
+                socket.close();
+                log.debug("Closing socket for {}", socket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                log.error("Error closing socket for {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closeRequested || socket.isClosed();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+}
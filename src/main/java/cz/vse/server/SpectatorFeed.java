@@ -0,0 +1,85 @@
+package cz.vse.server;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The public events of a game session streamed to its spectators: shots, turns and the result, never the ships.
+ * Every event is a shared {@link Reply} whose frames are encoded once, so publishing queues the same frame to every spectator.
+ * The outbound queues of spectators are short, see {@link Connection#limitOutbound(int)}: a spectator who doesn't keep up
+ * is disconnected, publishing never waits for one and never holds up the players.
+ * A spectator joining a running game first gets the events so far, so the stream is also a replay of the whole game.
+ * The replay is a single message too, shared by all spectators joining until the next event.
+ * Used only in the session's mailbox, so it needs no locks.
+ */
+@Slf4j
+class SpectatorFeed {
+    private final List<ClientHandler> spectators = new ArrayList<>();
+    private final List<Reply> history = new ArrayList<>(); // The names of the players, then the events
+    private final ServerMetrics metrics;
+    private Reply replay; // The history as one message, null when outdated
+
+    SpectatorFeed(String player1, String player2, ServerMetrics metrics) {
+        history.add(Reply.player(1, player1));
+        history.add(Reply.player(2, player2));
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sends the names of the players and the events so far to a new spectator, who gets every event from now on.
+     *
+     * @param spectator the spectator
+     */
+    void add(ClientHandler spectator) {
+        if (replay == null) {
+            replay = Reply.batch(history);
+        }
+        spectator.sendMessage(replay);
+        spectators.add(spectator);
+        metrics.spectatorJoined();
+    }
+
+    void remove(ClientHandler spectator) {
+        if (spectators.remove(spectator)) {
+            metrics.spectatorLeft();
+        }
+    }
+
+    /**
+     * Sends an event to all spectators. Spectators who went away meanwhile are dropped on the way.
+     *
+     * @param event the event
+     */
+    void publish(Reply event) {
+        history.add(event);
+        replay = null;
+        for (Iterator<ClientHandler> i = spectators.iterator(); i.hasNext(); ) {
+            ClientHandler spectator = i.next();
+            if (spectator.isClosing()) {
+                i.remove();
+                metrics.spectatorLeft();
+            } else {
+                spectator.sendMessage(event);
+            }
+        }
+    }
+
+    /**
+     * Disconnects all spectators once the game is over, after the result was published.
+     */
+    void close() {
+        for (ClientHandler spectator : spectators) {
+            try {
+                spectator.closeConnection(false);
+            } catch (IOException e) {
+                log.error("Error closing connection for spectator {}: {}", spectator, e.getMessage());
+            }
+            metrics.spectatorLeft();
+        }
+        spectators.clear();
+    }
+}
@@ -0,0 +1,164 @@
+package cz.vse.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel shared by all timeouts of the server.
+ * Time is divided into ticks, every tick owns one bucket of the wheel and a timeout lands in the bucket of its deadline,
+ * counting the full turns of the wheel it has to wait. Scheduling and cancelling are O(1) whatever the number of timeouts,
+ * and a single thread advancing the wheel replaces a timer per connection.
+ * <p>
+ * Expired tasks run on the wheel thread, so they must be short; anything touching a game session is handed to its mailbox.
+ * Deadlines are only as precise as one tick.
+ */
+public class TimingWheel implements Runnable {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Timeout[] buckets; // Heads of the bucket lists, owned by the wheel thread
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private final long startTime = System.nanoTime();
+    private volatile boolean running = true;
+    private long tick;
+    private Thread thread;
+
+    /**
+     * @param tickDuration the duration of one tick
+     * @param unit         the unit of the tick duration
+     * @param wheelSize    the number of buckets, rounded up to a power of two
+     */
+    public TimingWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Starts the wheel thread.
+     */
+    public void start() {
+        thread = new Thread(this, "timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the wheel thread, timeouts that didn't expire yet never run.
+     */
+    public void shutdown() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Schedules a task to run once the delay elapses.
+     *
+     * @param task  the task, run on the wheel thread
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @return the handle to cancel the timeout with
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        log.info("Timing wheel started with {} buckets of {} ms", buckets.length, TimeUnit.NANOSECONDS.toMillis(tickNanos));
+        while (running) {
+            long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+            transferScheduled();
+            expire(buckets[(int) (tick & mask)], (int) (tick & mask));
+            tick++;
+        }
+        log.info("Timing wheel stopped");
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() == CANCELLED) {
+                continue;
+            }
+            long ticks = Math.max(timeout.deadline / tickNanos, tick); // Overdue timeouts expire in this tick
+            timeout.rounds = (ticks - tick) / buckets.length;
+            int index = (int) (ticks & mask);
+            timeout.next = buckets[index];
+            buckets[index] = timeout;
+        }
+    }
+
+    private void expire(Timeout head, int index) {
+        Timeout previous = null;
+        for (Timeout timeout = head; timeout != null; timeout = timeout.next) {
+            boolean done = timeout.state.get() == CANCELLED;
+            if (!done && timeout.rounds-- <= 0) {
+                done = true;
+                if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        log.error("Error running timeout: {}", e.getMessage(), e);
+                    }
+                }
+            }
+            if (done) {
+                if (previous == null) {
+                    buckets[index] = timeout.next;
+                } else {
+                    previous.next = timeout.next;
+                }
+            } else {
+                previous = timeout;
+            }
+        }
+    }
+
+    /**
+     * A scheduled task of the wheel.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // Nanoseconds since the wheel was created
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long rounds;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout. The wheel drops it when it next visits its bucket.
+         *
+         * @return true if the task will not run, false if it already ran or started running
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED) || state.get() == CANCELLED;
+        }
+    }
+}
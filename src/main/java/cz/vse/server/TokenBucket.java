@@ -0,0 +1,47 @@
+package cz.vse.server;
+
+/**
+ * Token bucket allowing a burst of events and a steady rate after it.
+ * The bucket holds credit in nanoseconds, one token being worth the interval between two events at the steady rate;
+ * credit is added from the time elapsed since the last take, so an idle bucket costs nothing and no timer refills it.
+ */
+public class TokenBucket {
+    private final long nanosPerToken;
+    private final long capacity;
+    private long credit;
+    private long updatedAt;
+
+    /**
+     * @param tokensPerSecond the steady rate
+     * @param burst           the number of tokens a full bucket holds
+     */
+    public TokenBucket(double tokensPerSecond, int burst) {
+        this.nanosPerToken = Math.max(1, (long) (1_000_000_000L / tokensPerSecond));
+        this.capacity = nanosPerToken * Math.max(1, burst);
+        this.credit = capacity;
+        this.updatedAt = System.nanoTime();
+    }
+
+    /**
+     * Takes a token if there is one.
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @return 0 if a token was taken, otherwise the nanoseconds until the next token
+     */
+    public synchronized long tryAcquire(long now) {
+        credit = Math.min(capacity, credit + Math.max(0, now - updatedAt));
+        updatedAt = now;
+        if (credit >= nanosPerToken) {
+            credit -= nanosPerToken;
+            return 0;
+        }
+        return nanosPerToken - credit;
+    }
+
+    /**
+     * Puts back a token taken by {@link #tryAcquire(long)} that wasn't used.
+     */
+    public synchronized void refund() {
+        credit = Math.min(capacity, credit + nanosPerToken);
+    }
+}
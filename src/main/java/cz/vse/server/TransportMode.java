@@ -0,0 +1,22 @@
+package cz.vse.server;
+
+/**
+ * Transports the server can use to serve client connections.
+ * All of them speak the same line protocol, so clients can't tell them apart.
+ */
+public enum TransportMode {
+    /**
+     * One thread per connection blocking in readLine().
+     */
+    BLOCKING,
+
+    /**
+     * Same as {@link #BLOCKING}, but every connection runs on a virtual thread (Java 21+).
+     */
+    VIRTUAL,
+
+    /**
+     * A few selector threads multiplexing all non-blocking connections.
+     */
+    NIO
+}
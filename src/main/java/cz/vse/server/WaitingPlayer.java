@@ -0,0 +1,25 @@
+package cz.vse.server;
+
+/**
+ * A logged in client waiting in the lobby for an opponent.
+ */
+public class WaitingPlayer {
+    private final ClientHandler client;
+    private final long enqueuedAt;
+
+    public WaitingPlayer(ClientHandler client, long enqueuedAt) {
+        this.client = client;
+        this.enqueuedAt = enqueuedAt;
+    }
+
+    public ClientHandler getClient() {
+        return client;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the player entered the lobby
+     */
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+}
@@ -0,0 +1,116 @@
+package cz.vse.server;
+
+/**
+ * How commands and messages are framed and encoded on a connection.
+ * Every client starts with the text protocol and may switch to the binary one when logging in with {@code USER <name> BINARY};
+ * both formats decode into the same {@link Command}, so the command dispatch doesn't know which one the client speaks.
+ */
+public enum WireFormat {
+
+    /**
+     * Lines of text terminated by {@code \n} or {@code \r\n}.
+     */
+    TEXT {
+        @Override
+        int frameEnd(byte[] buffer, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        int contentStart(int frameStart) {
+            return frameStart;
+        }
+
+        @Override
+        int contentLength(byte[] buffer, int frameStart, int frameEnd) {
+            int end = frameEnd - 1;
+            if (end > frameStart && buffer[end - 1] == '\r') {
+                end--;
+            }
+            return end - frameStart;
+        }
+
+        @Override
+        Command decode(CommandParser parser, byte[] buffer, int offset, int length) {
+            return parser.parse(buffer, offset, length);
+        }
+
+        @Override
+        byte[] encode(Reply reply) {
+            return reply.getTextFrame();
+        }
+    },
+
+    /**
+     * Frames of a length byte followed by that many bytes: an opcode and its arguments.
+     * Coordinates are packed into one byte, x in the high and y in the low four bits,
+     * and PLACE packs the shape and the rotation the same way, so a shot is 3 bytes instead of up to 10.
+     */
+    BINARY {
+        @Override
+        int frameEnd(byte[] buffer, int start, int end) {
+            if (start == end) {
+                return -1;
+            }
+            int frameEnd = start + 1 + (buffer[start] & 0xFF);
+            return frameEnd <= end ? frameEnd : -1;
+        }
+
+        @Override
+        int contentStart(int frameStart) {
+            return frameStart + 1;
+        }
+
+        @Override
+        int contentLength(byte[] buffer, int frameStart, int frameEnd) {
+            return frameEnd - frameStart - 1;
+        }
+
+        @Override
+        Command decode(CommandParser parser, byte[] buffer, int offset, int length) {
+            return parser.parseBinary(buffer, offset, length);
+        }
+
+        @Override
+        byte[] encode(Reply reply) {
+            return reply.getBinaryFrame();
+        }
+    };
+
+    /**
+     * Finds the end of the next frame.
+     *
+     * @param buffer the received bytes
+     * @param start  the start of the frame
+     * @param end    the end of the received bytes
+     * @return the position right after the frame, -1 if the frame isn't complete yet
+     */
+    abstract int frameEnd(byte[] buffer, int start, int end);
+
+    /**
+     * @param frameStart the start of a complete frame
+     * @return the start of the command in the frame
+     */
+    abstract int contentStart(int frameStart);
+
+    /**
+     * @param buffer     the received bytes
+     * @param frameStart the start of a complete frame
+     * @param frameEnd   the end of the frame as returned by {@link #frameEnd(byte[], int, int)}
+     * @return the length of the command without the framing
+     */
+    abstract int contentLength(byte[] buffer, int frameStart, int frameEnd);
+
+    abstract Command decode(CommandParser parser, byte[] buffer, int offset, int length);
+
+    /**
+     * @param reply the message
+     * @return the frame of the message, shared and must not be modified
+     */
+    abstract byte[] encode(Reply reply);
+}